@@ -0,0 +1,80 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *
+ * Submission comment count lookups, as made for every listed
+ * submission of a crawl.
+ *
+ *      hit     put of an unchanged count for a cached submission.
+ *      miss    put for a submission not cached, evicting another
+ *              once the cache is full.
+ *      get     lookup of a cached submission.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommentCountCacheBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int capacity;
+
+    private CommentCountCache _cache;
+
+    private long[] _keys;
+
+    private long _next = 0;
+
+    private long _missKey;
+
+    @Setup
+    public void setup() {
+        _cache = new CommentCountCache(capacity);
+        Random random = new Random(42);
+        _keys = new long[capacity];
+        for(int i = 0; i < capacity; i++) {
+            //
+            // Submission fullnames, t3_ plus a base36 id.
+            //
+            _keys[i] = Utils.fullnameToLong(
+                    "t3_" + Long.toString(
+                                1000000000L + random.nextInt(1 << 30), 36));
+            _cache.put(_keys[i], i);
+        }
+        _missKey = Utils.fullnameToLong("t3_zzzzzz");
+    }
+
+    @Benchmark
+    public long hit() {
+        int i = index();
+        return _cache.put(_keys[i], i);
+    }
+
+    @Benchmark
+    public long get() {
+        return _cache.get(_keys[index()]);
+    }
+
+    @Benchmark
+    public long miss() {
+        return _cache.put(_missKey + _next++, 1);
+    }
+
+    /**
+     *
+     * Visit the cached keys in a scattered order, not insertion order.
+     *
+     */
+    private int index() {
+        return (int)((_next++ * 7919) % _keys.length);
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Checking a whole comment tree against the registered criteria, as a
+ * crawl does for each changed submission.
+ *
+ * Keyword criteria are matched by the crawler's automaton, custom
+ * criteria one by one.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CommentTreeBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int comments;
+
+    @Param({"1", "10", "100"})
+    public int criteria;
+
+    @Param({"keyword", "custom"})
+    public String kind;
+
+    private Crawler _crawler;
+
+    private List<Comment> _tree;
+
+    @Setup
+    public void setup() {
+        _crawler = new Crawler( new User("jmh", "jmh"),
+                                "JMH_COMMENT_TREE",
+                                new ArrayList<String>(),
+                                new Submissions.ListingType[] {
+                                        Submissions.ListingType.NEW },
+                                10,
+                                60);
+
+        CrawlerListener listener = new CrawlerListener() {
+            public void handleCrawlerEvent(CrawlerEvent event) { }
+        };
+        _crawler.addListener(listener);
+
+        for(int i = 0; i < criteria; i++) {
+            final String keyword = SyntheticThings.keyword(i);
+            if(kind.equals("keyword")) {
+                _crawler.addMatchCriteria(
+                            new KeywordMatchCriteria(listener, keyword));
+            } else {
+                _crawler.addMatchCriteria(
+                            new CustomCriteria(listener, keyword));
+            }
+        }
+
+        _tree = SyntheticThings.commentTree(new Random(42), comments, 4);
+    }
+
+    @Benchmark
+    public int commentTreeCheck() {
+        return _crawler.commentTreeCheck(_tree, null);
+    }
+
+    /**
+     *
+     * Criteria written the way bots wrote them before keyword criteria.
+     *
+     */
+    static class CustomCriteria implements CrawlerMatchCriteria {
+
+        private CrawlerListener _listener;
+        private String _keyword;
+
+        CustomCriteria(CrawlerListener listener, String keyword) {
+            _listener = listener;
+            _keyword = keyword;
+        }
+
+        public boolean match(Thing thing) {
+            if(thing instanceof Comment) {
+                String body = ((Comment)thing).getBody();
+                return body != null &&
+                        body.toLowerCase().indexOf(_keyword) != -1;
+            }
+            return false;
+        }
+
+        public CrawlerListener getCrawlerListener() {
+            return _listener;
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Matching one comment against N criteria, across body sizes.
+ *
+ *      custom      hand written criteria, lowercasing the body each.
+ *      keyword     KeywordMatchCriteria.match() one by one.
+ *      automaton   one KeywordMatcher scan for all of them, as a
+ *                  crawler matches keyword criteria.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CriteriaMatchBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int bodyChars;
+
+    @Param({"1", "10", "100"})
+    public int criteria;
+
+    private Comment _comment;
+
+    private CrawlerMatchCriteria[] _custom;
+
+    private CrawlerMatchCriteria[] _keyword;
+
+    private KeywordMatcher _matcher;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        _comment = new SyntheticThings.SyntheticComment(
+                                "t1_jmh",
+                                SyntheticThings.text(random, bodyChars));
+
+        CrawlerListener listener = new CrawlerListener() {
+            public void handleCrawlerEvent(CrawlerEvent event) { }
+        };
+
+        _custom = new CrawlerMatchCriteria[criteria];
+        _keyword = new CrawlerMatchCriteria[criteria];
+        List<KeywordMatchCriteria> all = new ArrayList<KeywordMatchCriteria>();
+        for(int i = 0; i < criteria; i++) {
+            String keyword = SyntheticThings.keyword(i);
+            _custom[i] = new CommentTreeBenchmark.CustomCriteria(
+                                                    listener, keyword);
+            KeywordMatchCriteria keywordCriteria = 
+                                new KeywordMatchCriteria(listener, keyword);
+            _keyword[i] = keywordCriteria;
+            all.add(keywordCriteria);
+        }
+        _matcher = new KeywordMatcher(all);
+    }
+
+    @Benchmark
+    public void custom(Blackhole bh) {
+        for(CrawlerMatchCriteria c: _custom) {
+            bh.consume(c.match(_comment));
+        }
+    }
+
+    @Benchmark
+    public void keyword(Blackhole bh) {
+        for(CrawlerMatchCriteria c: _keyword) {
+            bh.consume(c.match(_comment));
+        }
+    }
+
+    @Benchmark
+    public BitSet automaton() {
+        return _matcher.match(KeywordMatcher.getText(_comment));
+    }
+
+}
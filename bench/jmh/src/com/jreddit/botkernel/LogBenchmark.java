@@ -0,0 +1,65 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *
+ * BotKernel.log(), which every bot and crawler calls, alone and with
+ * four threads logging at once, and a debug message from a crawler with
+ * debug turned off. Output is discarded. Callers only queue messages,
+ * so once the writer falls behind messages are dropped; this measures
+ * what logging costs the caller.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LogBenchmark {
+
+    private PrintStream _out;
+
+    private BotKernel _kernel;
+
+    @Setup
+    public void setup() {
+        _out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        }));
+        _kernel = BotKernel.getBotKernel();
+        _kernel.getLogger().setLevel(
+                        Crawler.class.getName(), KernelLogger.INFO);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _kernel.getLogger().flush();
+        System.setOut(_out);
+    }
+
+    @Benchmark
+    public void log() {
+        _kernel.log("Checking for crawl matches in subreddit: test");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void logContended() {
+        _kernel.log("Checking for crawl matches in subreddit: test");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void logDisabled() {
+        _kernel.log(Crawler.class, KernelLogger.DEBUG,
+                    "Checking for crawl matches in subreddit: %s", "test");
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * The listener and criteria snapshot a crawler matches against.
+ *
+ *      publish     rebuilding the snapshot, as on every listener or
+ *                  criteria change.
+ *      dispatch    walking the snapshot for one matched thing, which
+ *                  replaced copying the listener list per thing.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RegistryBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int listeners;
+
+    @Param({"1", "10"})
+    public int criteriaPerListener;
+
+    private List<CrawlerListener> _listeners;
+
+    private List<CrawlerMatchCriteria> _criteria;
+
+    private Map<CrawlerListener, ListenerMailbox> _mailboxes;
+
+    private CrawlerRegistry _registry;
+
+    private Comment _comment;
+
+    @Setup
+    public void setup() {
+        _listeners = new ArrayList<CrawlerListener>();
+        _criteria = new ArrayList<CrawlerMatchCriteria>();
+        _mailboxes = new HashMap<CrawlerListener, ListenerMailbox>();
+
+        int k = 0;
+        for(int i = 0; i < listeners; i++) {
+            CrawlerListener listener = new CrawlerListener() {
+                public void handleCrawlerEvent(CrawlerEvent event) { }
+            };
+            _listeners.add(listener);
+            for(int j = 0; j < criteriaPerListener; j++) {
+                _criteria.add(new KeywordMatchCriteria(
+                                    listener, SyntheticThings.keyword(k++)));
+            }
+        }
+
+        _registry = new CrawlerRegistry(_listeners, _criteria, _mailboxes);
+        _comment = new SyntheticThings.SyntheticComment(
+                        "t1_jmh", SyntheticThings.text(new Random(42), 300));
+    }
+
+    @Benchmark
+    public CrawlerRegistry publish() {
+        return new CrawlerRegistry(_listeners, _criteria, _mailboxes);
+    }
+
+    @Benchmark
+    public void dispatch(Blackhole bh) {
+        CrawlerRegistry registry = _registry;
+        for(CrawlerRegistry.Group group: registry.groups) {
+            for(CrawlerMatchCriteria criteria: group.criteria) {
+                bh.consume(registry.keywordMatcher.indexOf(criteria));
+                bh.consume(group.listener);
+            }
+        }
+        bh.consume(_comment);
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Synthetic comments and submissions for the JMH benchmarks, built
+ * without reddit or JSON.
+ *
+ */
+public class SyntheticThings {
+
+    private static final String[] WORDS = {
+        "the", "a", "bot", "reddit", "hello", "thanks", "game", "play",
+        "comment", "post", "link", "upvote", "karma", "subreddit", "say",
+        "why", "what", "when", "this", "that", "is", "was", "not", "really",
+        "Blackjack", "deal", "me", "in", "please", "card", "LOL", "great" };
+
+    /**
+     *
+     * A comment with a fixed body and replies.
+     *
+     */
+    public static class SyntheticComment extends Comment {
+
+        private String _name;
+        private String _body;
+        private List<Comment> _replies = new ArrayList<Comment>();
+
+        public SyntheticComment(String name, String body) {
+            super(null);
+            _name = name;
+            _body = body;
+        }
+
+        public String getName() { return _name; }
+        public String getBody() { return _body; }
+        public String getAuthor() { return "synthetic"; }
+        public List<Comment> getReplies() { return _replies; }
+    }
+
+    /**
+     *
+     * A self post submission.
+     *
+     */
+    public static class SyntheticSubmission extends Submission {
+
+        private String _name;
+        private String _selftext;
+        private String _subreddit;
+        private long _numComments;
+
+        public SyntheticSubmission(String name,
+                                   String subreddit,
+                                   String selftext,
+                                   long numComments) {
+            super(null);
+            _name = name;
+            _subreddit = subreddit;
+            _selftext = selftext;
+            _numComments = numComments;
+        }
+
+        public String getName() { return _name; }
+        public String getTitle() { return _name; }
+        public String getAuthor() { return "synthetic"; }
+        public String getSubreddit() { return _subreddit; }
+        public String getSelftext() { return _selftext; }
+        public boolean isSelfPost() { return true; }
+        public long getNumComments() { return _numComments; }
+    }
+
+    /**
+     *
+     * Text of about the given number of characters.
+     *
+     */
+    public static String text(Random random, int chars) {
+        StringBuffer sb = new StringBuffer();
+        while(sb.length() < chars) {
+            if(sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     *
+     * A keyword unlikely to occur in synthetic text, so criteria scan
+     * the whole body.
+     *
+     */
+    public static String keyword(int i) {
+        return "keyword" + i + " " + WORDS[i % WORDS.length];
+    }
+
+    /**
+     *
+     * A comment tree of the given size. Each comment gets up to
+     * fanout replies, so the tree is both wide and a few levels deep.
+     * Bodies are mostly short with the odd long one, as on reddit.
+     *
+     * @return The top level comments.
+     *
+     */
+    public static List<Comment> commentTree(Random random,
+                                            int size,
+                                            int fanout) {
+        List<Comment> top = new ArrayList<Comment>();
+        List<SyntheticComment> all = new ArrayList<SyntheticComment>();
+        for(int i = 0; i < size; i++) {
+            int chars = i % 20 == 0 ? 2000 : 40 + random.nextInt(300);
+            SyntheticComment comment = new SyntheticComment(
+                                    "t1_" + Long.toString(i + 1000, 36),
+                                    text(random, chars));
+            if(all.isEmpty() || random.nextInt(fanout + 1) == 0) {
+                top.add(comment);
+            } else {
+                SyntheticComment parent = all.get(
+                            Math.max(0, all.size() - 1 - random.nextInt(fanout)));
+                parent.getReplies().add(comment);
+            }
+            all.add(comment);
+        }
+        return top;
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.jreddit.botkernel.bench;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Compare the time until all configured bots are running when they are
+ * loaded one at a time, as the kernel used to, with loading them all at
+ * once through BotKernel.loadBots().
+ *
+ * Each bot's init() sleeps for a simulated reddit login. While the bots
+ * load, a probe thread keeps making a kernel call which takes the kernel
+ * lock, and the longest it had to wait is reported too.
+ *
+ * Usage:
+ *
+ *  java BotStartupComparison [bots] [init millis]
+ *
+ */
+public class BotStartupComparison {
+
+    private static volatile int _initMillis = 1000;
+
+    /**
+     *
+     * A bot whose init() takes as long as a login, then idles.
+     *
+     */
+    public static class SlowInitBot extends BaseBot {
+
+        private static AtomicInteger _count = new AtomicInteger();
+
+        private String _name = "SLOW_INIT_BOT_" + _count.getAndIncrement();
+
+        public String getName() { return _name; }
+
+        public void init() {
+            try {
+                Thread.sleep(_initMillis);
+            } catch(InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+        }
+
+        public void run() {
+            while(!_shutdown) {
+                sleep(1);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int bots = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        _initMillis = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        final BotKernel kernel = BotKernel.getBotKernel();
+
+        List<String> classnames = new ArrayList<String>();
+        for(int i = 0; i < bots; i++) {
+            classnames.add(SlowInitBot.class.getName());
+        }
+
+        List<String> results = new ArrayList<String>();
+        for(String mode: new String[] { "sequential", "parallel" }) {
+
+            final long[] maxWait = new long[1];
+            final boolean[] stop = new boolean[1];
+            Thread probe = new Thread() {
+                public void run() {
+                    while(!stop[0]) {
+                        long start = System.nanoTime();
+                        kernel.stopBot("NO_SUCH_BOT");
+                        maxWait[0] = Math.max(maxWait[0],
+                                              System.nanoTime() - start);
+                        try {
+                            Thread.sleep(10);
+                        } catch(InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            };
+            probe.start();
+
+            long start = System.currentTimeMillis();
+            if(mode.equals("sequential")) {
+                for(String classname: classnames) {
+                    kernel.loadBot(classname);
+                }
+            } else {
+                kernel.loadBots(classnames);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            stop[0] = true;
+            probe.join();
+
+            results.add(String.format(
+                            "%-10s  %4d bots  %6d ms to all running  " +
+                            "%6d ms max kernel lock wait",
+                            mode, bots, elapsed, maxWait[0] / 1000000));
+        }
+
+        kernel.getLogger().flush();
+        System.out.println();
+        System.out.println("init() " + _initMillis + " ms per bot");
+        for(String result: results) {
+            System.out.println(result);
+        }
+        System.exit(0);
+    }
+
+}
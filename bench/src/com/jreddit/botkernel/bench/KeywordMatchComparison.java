@@ -0,0 +1,115 @@
+package com.jreddit.botkernel.bench;
+
+import java.util.*;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Compare the cost of matching comment text against N keyword criteria
+ * one criteria at a time (lowercase the body and indexOf() per criteria,
+ * as hand written criteria do) with a single KeywordMatcher scan.
+ *
+ * Usage:
+ *
+ *  java KeywordMatchComparison [counts...]
+ *
+ * Prints one result line per criteria count with the average cost of
+ * matching one comment in nanoseconds.
+ *
+ */
+public class KeywordMatchComparison {
+
+    private static final String[] WORDS = {
+        "the", "a", "bot", "reddit", "hello", "thanks", "game", "play",
+        "comment", "post", "link", "upvote", "karma", "subreddit", "say",
+        "why", "what", "when", "this", "that", "is", "was", "not", "really",
+        "Blackjack", "deal", "me", "in", "please", "card", "LOL", "great" };
+
+    private static final int COMMENTS = 2000;
+
+    public static void main(String[] args) {
+
+        List<Integer> counts = new ArrayList<Integer>();
+        for(String arg: args) {
+            counts.add(Integer.valueOf(arg));
+        }
+        if(counts.isEmpty()) {
+            counts.add(1);
+            counts.add(10);
+            counts.add(100);
+            counts.add(1000);
+        }
+
+        Random random = new Random(42);
+
+        //
+        // Synthetic comment bodies, mostly short, some long.
+        //
+        String[] bodies = new String[COMMENTS];
+        for(int i = 0; i < COMMENTS; i++) {
+            int words = i % 10 == 0 ? 400 : 10 + random.nextInt(60);
+            bodies[i] = sentence(random, words);
+        }
+
+        for(int count: counts) {
+
+            List<KeywordMatchCriteria> criteria = 
+                                    new ArrayList<KeywordMatchCriteria>();
+            for(int i = 0; i < count; i++) {
+                criteria.add(new KeywordMatchCriteria(
+                        null, sentence(random, 3)));
+            }
+            KeywordMatcher matcher = new KeywordMatcher(criteria);
+
+            long naive = 0;
+            long automaton = 0;
+            long hits = 0;
+
+            //
+            // First rounds are warm up.
+            //
+            for(int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for(String body: bodies) {
+                    for(KeywordMatchCriteria c: criteria) {
+                        String lower = body.toLowerCase();
+                        for(String keyword: c.getKeywords()) {
+                            if(lower.indexOf(keyword) != -1) {
+                                hits++;
+                            }
+                        }
+                    }
+                }
+                long middle = System.nanoTime();
+                for(String body: bodies) {
+                    hits += matcher.match(
+                                KeywordMatcher.normalize(body)).cardinality();
+                }
+                long end = System.nanoTime();
+                if(round >= 2) {
+                    naive += middle - start;
+                    automaton += end - middle;
+                }
+            }
+
+            System.out.println(
+                "RESULT criteria=" + count +
+                " per_criteria_ns_per_comment=" + (naive / 3 / COMMENTS) +
+                " automaton_ns_per_comment=" + (automaton / 3 / COMMENTS) +
+                " (hits " + hits + ")");
+        }
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < words; i++) {
+            if(i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+}
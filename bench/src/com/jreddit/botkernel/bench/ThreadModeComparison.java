@@ -0,0 +1,193 @@
+package com.jreddit.botkernel.bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Compare the footprint and context switch cost of hosting idle bots 
+ * on platform threads versus virtual threads.
+ *
+ * Loads idle bots (which just sleep, like most real bots do between 
+ * polls) into the kernel up to each requested count, in ascending order,
+ * lets them run for a measurement window and reports one result line 
+ * per bot count. The bots are never stopped; the JVM exits when done.
+ *
+ * Usage:
+ *
+ *  java ThreadModeComparison <platform|virtual> [window secs] [counts...]
+ *
+ * Run each mode in its own JVM so the numbers do not interfere.
+ * Context switch counts are read from /proc and are Linux only.
+ *
+ */
+public class ThreadModeComparison {
+
+    /**
+     *
+     * A bot which does nothing but BaseBot.sleep() until shut down.
+     *
+     */
+    public static class IdleBot extends BaseBot {
+
+        private static AtomicInteger _count = new AtomicInteger();
+
+        private String _name = "IDLE_BOT_" + _count.getAndIncrement();
+
+        public String getName() { return _name; }
+
+        public void init() { }
+
+        public void run() {
+            while(!_shutdown) {
+                sleep(1);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if(args.length < 1) {
+            System.err.println(
+                "Usage: ThreadModeComparison <platform|virtual> " +
+                "[window secs] [counts...]");
+            System.exit(1);
+        }
+
+        boolean virtual = args[0].equals("virtual");
+        int window = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        List<Integer> counts = new ArrayList<Integer>();
+        for(int i = 2; i < args.length; i++) {
+            counts.add(Integer.valueOf(args[i]));
+        }
+        if(counts.isEmpty()) {
+            counts.add(10);
+            counts.add(100);
+            counts.add(1000);
+        }
+
+        BotKernel kernel = BotKernel.getBotKernel();
+        kernel.setVirtualThreads(virtual);
+
+        List<String> results = new ArrayList<String>();
+
+        //
+        // Bots from earlier counts are left running, so each count is
+        // measured on top of the previous ones. Deltas are computed
+        // against the kernel with no idle bots loaded.
+        //
+        gc();
+        long heapBefore = usedHeap();
+        long rssBefore = rss();
+        int loaded = 0;
+
+        for(int count: counts) {
+
+            long loadStart = System.nanoTime();
+            for(; loaded < count; loaded++) {
+                kernel.loadBot(IdleBot.class.getName());
+            }
+            long loadMillis = (System.nanoTime() - loadStart) / 1000000;
+
+            //
+            // Let the bots settle, then measure.
+            //
+            Thread.sleep(2000);
+            gc();
+            long heap = usedHeap() - heapBefore;
+            long rss = rss() - rssBefore;
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            long switchesBefore = contextSwitches();
+            Thread.sleep(window * 1000L);
+            long switches = contextSwitches() - switchesBefore;
+
+            results.add( 
+                "mode=" + (virtual ? "virtual" : "platform") +
+                " bots=" + count +
+                " load_ms=" + loadMillis +
+                " platform_threads=" + threads +
+                " heap_kb=" + (heap / 1024) +
+                " rss_kb=" + (rss / 1024) +
+                " ctx_switches_per_sec=" + 
+                    (switches < 0 ? "n/a" : "" + (switches / window)) );
+        }
+
+        for(String result: results) {
+            System.out.println("RESULT " + result);
+        }
+        System.exit(0);
+    }
+
+    private static void gc() throws InterruptedException {
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Resident set size in bytes, or 0 if unavailable.
+     */
+    private static long rss() {
+        String value = procStatus(new File("/proc/self/status"), "VmRSS:");
+        if(value == null) {
+            return 0;
+        }
+        return Long.parseLong(value.split("\\s+")[0]) * 1024;
+    }
+
+    /**
+     * Voluntary plus involuntary context switches of every thread
+     * in this process, or -1 if unavailable.
+     */
+    private static long contextSwitches() {
+        File[] tasks = new File("/proc/self/task").listFiles();
+        if(tasks == null) {
+            return -1;
+        }
+        long total = 0;
+        for(File task: tasks) {
+            File status = new File(task, "status");
+            String v = procStatus(status, "voluntary_ctxt_switches:");
+            String n = procStatus(status, "nonvoluntary_ctxt_switches:");
+            if(v != null) {
+                total += Long.parseLong(v);
+            }
+            if(n != null) {
+                total += Long.parseLong(n);
+            }
+        }
+        return total;
+    }
+
+    private static String procStatus(File file, String key) {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while((line = br.readLine()) != null) {
+                    if(line.startsWith(key)) {
+                        return line.substring(key.length()).trim();
+                    }
+                }
+            } finally {
+                br.close();
+            }
+        } catch(IOException ioe) {
+            // Thread exited while we were reading, or not on Linux.
+        }
+        return null;
+    }
+
+}
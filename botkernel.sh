@@ -62,6 +62,13 @@ case "$OP" in
                 echo "No running BotKernel service found."
             else
                 echo "BotKernel running $PID"
+                #
+                # Ask the status endpoint, if enabled.
+                #
+                PORT=`grep '^kernel.status.port=' scratch/bots.properties 2>/dev/null | cut -d= -f2`
+                if [ -n "$PORT" ]; then
+                    curl -s http://localhost:$PORT/status
+                fi
             fi
         ;;
 esac
@@ -19,6 +19,7 @@ public class AdminBot extends BaseBot implements Bot {
 
     private static final String CONFIG_FILE = "scratch/adminbot.properties";
     private static final String REPLIES_FILE = "scratch/adminbot.replies";
+    private static final String SEEN_FILE   = "scratch/adminbot.seen";
 
     private String _owner = null;   // Load this from config. We will
                                     // accept PM'ed commands from this user.
@@ -29,6 +30,7 @@ public class AdminBot extends BaseBot implements Bot {
     public static final String SHUTDOWN = "shutdown";   // Shutdown botkernel
     public static final String LOAD_BOT = "loadbot";    // Load a bot
     public static final String STOP_BOT = "stopbot";    // Stop a bot
+    public static final String RELOAD_BOT = "reloadbot"; // Reload a bot
     public static final String ADD_CRAWLER      = "addcrawler";
     public static final String REMOVE_CRAWLER   = "removecrawler";  
 
@@ -50,7 +52,7 @@ public class AdminBot extends BaseBot implements Bot {
     // Anyway for now persist messages we have replied to, to avoid
     // replying multiple times.
     //
-    private Properties _replies = null;
+    private SeenIdLedger _replies = null;
 
     /**
      *
@@ -81,13 +83,14 @@ public class AdminBot extends BaseBot implements Bot {
         String username = props.getProperty("username");
         String password = props.getProperty("password");
 
-        _user = new User(username, password);
+        _user = SessionManager.getSessionManager().getUser(
+                                                        username, password);
 
         //
         // Load our replied messages
         //
-        _replies = new Properties();
-        loadProperties(REPLIES_FILE, _replies);
+        _replies = openSeenIds(
+                        SEEN_FILE, REPLIES_FILE, getSeenIdsExpected(props));
 
         //
         // Register the default crawler, which any bots can use.
@@ -109,7 +112,7 @@ public class AdminBot extends BaseBot implements Bot {
            
             try {
 
-                _user.connect();
+                SessionManager.getSessionManager().connect(_user);
 
                 //
                 // Check for stuff to do here.
@@ -120,6 +123,7 @@ public class AdminBot extends BaseBot implements Bot {
                 //
                 // Look for and handle new messages 
                 //
+                budget();
                 List<Message> messages = Messages.getMessages(
                                                 _user,
                                                 Messages.MessageType.UNREAD,
@@ -132,10 +136,11 @@ public class AdminBot extends BaseBot implements Bot {
                     //
                     // No new messages. This means all messages have been
                     // successfully marked as read. Clear our workaround
-                    // cache of replies.
+                    // cache of replies, if there is anything to clear.
                     //
-                    _replies.clear();
-                    saveProperties(REPLIES_FILE, _replies);
+                    if(_replies.size() > 0) {
+                        _replies.clear();
+                    }
                 }
 
                 for(Message message: messages) {
@@ -161,9 +166,10 @@ public class AdminBot extends BaseBot implements Bot {
                             // message.
                             //
                             String fullname = message.getName();
-                            if(_replies.getProperty(fullname) != null) {
+                            if(_replies.contains(fullname)) {
                                 log("Skipping already replied message: " 
                                     + body);
+                                budget();
                                 Messages.markAsRead(_user, message);
                                 continue;
                             }
@@ -190,6 +196,7 @@ public class AdminBot extends BaseBot implements Bot {
                                         CrawlerFactory.getCrawler(commands[1]);
                                     BotKernel.getBotKernel().addCrawler(
                                                                     crawler); 
+                                    budget();
                                     Messages.markAsRead(_user, message);
                                     continue;
                                 }
@@ -199,6 +206,7 @@ public class AdminBot extends BaseBot implements Bot {
                                         CrawlerFactory.getCrawler(commands[1]);
                                     BotKernel.getBotKernel().removeCrawler(
                                                                     crawler); 
+                                    budget();
                                     Messages.markAsRead(_user, message);
                                     continue;
                                 }
@@ -208,6 +216,7 @@ public class AdminBot extends BaseBot implements Bot {
 
                                     log("Executing command: "  + LOAD_BOT);
 
+                                    budget();
                                     Comments.comment(
                                         _user, 
                                         message, 
@@ -230,6 +239,7 @@ public class AdminBot extends BaseBot implements Bot {
                                             "stop myself. Will not stop " +
                                             "admin bot.");
                                         
+                                        budget();
                                         Comments.comment(
                                             _user, 
                                             message, 
@@ -241,6 +251,7 @@ public class AdminBot extends BaseBot implements Bot {
 
                                     log("Executing command: "  + STOP_BOT);
 
+                                    budget();
                                     Comments.comment(
                                         _user, 
                                         message, 
@@ -251,6 +262,37 @@ public class AdminBot extends BaseBot implements Bot {
                                     BotKernel.getBotKernel().stopBot(name);
                                     continue;
                                 }
+
+                                if(commands[0].equals(RELOAD_BOT)) {
+                                    String name = commands[1];
+
+                                    if(name.equals(BOT_NAME)) {
+                                        log("INFO Refusing request to " +
+                                            "reload myself.");
+
+                                        budget();
+                                        Comments.comment(
+                                            _user, 
+                                            message, 
+                                            "Not reloading admin bot.");
+
+                                        markAsReplied(message);
+                                        continue;
+                                    }
+
+                                    log("Executing command: "  + RELOAD_BOT);
+
+                                    budget();
+                                    Comments.comment(
+                                        _user, 
+                                        message, 
+                                        "Reloading bot " + name);
+                                
+                                    markAsReplied(message);
+
+                                    BotKernel.getBotKernel().reloadBot(name);
+                                    continue;
+                                }
     
                                 continue;
 
@@ -265,9 +307,17 @@ public class AdminBot extends BaseBot implements Bot {
     
                 }
 
+            } catch(RateLimitException rle) {
+                log("Error AdminBot rate limited for " + 
+                                        rle.getRetryTime() + "s");
+                RequestBudget.getRequestBudget().penalize(
+                                        _user, rle.getRetryTime());
             } catch(IOException ioe) {
                 ioe.printStackTrace();
                 log("Error AdminBot caught " + ioe);
+                if(SessionManager.isAuthError(ioe)) {
+                    SessionManager.getSessionManager().invalidate(_user);
+                }
             }
 
             BotKernel.getBotKernel().logInfo();
@@ -279,13 +329,34 @@ public class AdminBot extends BaseBot implements Bot {
             //
             sleep(SLEEP_TIME);
         }
+
+        try {
+            _replies.close();
+        } catch(IOException ioe) {
+            log("ERROR saving replied messages: " + ioe);
+        }
+    }
+
+    /**
+     *
+     * Wait for our turn to make a request, ahead of crawl traffic
+     * on the same account.
+     *
+     */
+    private void budget() throws InterruptedIOException {
+        RequestBudget.getRequestBudget().acquire(_user, RequestBudget.ADMIN);
     }
 
     public void markAsReplied(Message message) {
-        _replies.setProperty(message.getName(), "");
-        saveProperties(REPLIES_FILE, _replies);
+        try {
+            _replies.add(message.getName());
+        } catch (IOException ioe) {
+            log("ERROR Error saving replied message " + 
+                message.getName() + ": " + ioe);
+        }
 
         try {
+            budget();
             Messages.markAsRead(_user, message);
         } catch (IOException ioe) {
             //
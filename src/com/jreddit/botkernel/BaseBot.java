@@ -17,6 +17,12 @@ public abstract class BaseBot implements Bot {
 
     protected boolean _shutdown;
 
+    //
+    // Ids a seen id ledger's Bloom filter is sized for, unless a bot's
+    // config sets seenids.expected.
+    //
+    protected static final int DEFAULT_SEEN_IDS_EXPECTED = 100000;
+
     protected void sleep(int seconds) {
         try {
             for(int i = 0; i < seconds; i++) {
@@ -43,7 +49,7 @@ public abstract class BaseBot implements Bot {
     }
 
     protected void log(String s) {
-        BotKernel.getBotKernel().log(s);
+        BotKernel.getBotKernel().log(getClass(), KernelLogger.INFO, s);
     }
 
     protected void loadProperties(String filename, Properties props) {
@@ -57,6 +63,87 @@ public abstract class BaseBot implements Bot {
         }
     }
 
+    /**
+     *
+     * Open a durable set of fullnames, e.g. of things already replied
+     * to. If the ledger is new and a Properties file of fullnames from 
+     * an older version of the bot exists, its keys are imported and the
+     * file is renamed to legacyFile.migrated.
+     *
+     * The ledger is fronted by a Bloom filter sized for the expected
+     * number of ids, so checking things never replied to, nearly all of
+     * them, rarely touches the set.
+     *
+     * If the ledger cannot be opened an error is logged and an in 
+     * memory ledger is returned, so the bot keeps running.
+     *
+     * @param filename      The ledger file.
+     * @param legacyFile    A Properties file to import, or null.
+     * @param expected      Ids the Bloom filter is sized for, 0 for none.
+     *
+     */
+    protected SeenIdLedger openSeenIds( String filename, 
+                                        String legacyFile,
+                                        int expected ) {
+        try {
+            log("Opening seen id ledger " + filename);
+            SeenIdLedger ledger = new SeenIdLedger(filename);
+            File legacy = legacyFile == null ? null : new File(legacyFile);
+            if(ledger.size() == 0 && legacy != null && legacy.exists()) {
+                Properties props = new Properties();
+                loadProperties(legacyFile, props);
+                int imported = 0;
+                for(String fullname: props.stringPropertyNames()) {
+                    try {
+                        ledger.add(fullname);
+                        imported++;
+                    } catch(IllegalArgumentException iae) {
+                        log("Skipping invalid fullname " + fullname);
+                    }
+                }
+                ledger.sync();
+                legacy.renameTo(new File(legacyFile + ".migrated"));
+                log("Imported " + imported + " ids from " + legacyFile);
+            }
+            if(expected > 0) {
+                ledger.setBloomFilter(expected);
+            }
+            return ledger;
+        } catch(IOException ioe) {
+            log("ERROR opening seen id ledger " + filename + ": " + ioe + 
+                ". Keeping seen ids in memory only.");
+            try {
+                SeenIdLedger ledger = new SeenIdLedger(null);
+                if(expected > 0) {
+                    ledger.setBloomFilter(expected);
+                }
+                return ledger;
+            } catch(IOException impossible) {
+                throw new RuntimeException(impossible);
+            }
+        }
+    }
+
+    /**
+     *
+     * The number of ids a bot's seen id ledger is expected to hold, from
+     * the seenids.expected property.
+     *
+     */
+    protected int getSeenIdsExpected(Properties props) {
+        String value = props.getProperty("seenids.expected");
+        if(value == null) {
+            return DEFAULT_SEEN_IDS_EXPECTED;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch(NumberFormatException nfe) {
+            log("ERROR invalid seenids.expected " + value + 
+                ", using " + DEFAULT_SEEN_IDS_EXPECTED);
+            return DEFAULT_SEEN_IDS_EXPECTED;
+        }
+    }
+
     protected void saveProperties(String filename, Properties props) {
         try {
             log("Saving properties file " + filename);
@@ -0,0 +1,79 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ *
+ * Class loader of one loaded bot.
+ *
+ * Loads from the jars in the bot directory, as they are when the bot is
+ * loaded, on top of the kernel's class loader. The kernel, jReddit and
+ * anything else on the kernel classpath comes from the kernel's loader
+ * and is shared by all bots. Classes found only in the bot jars belong
+ * to this loader, so when the bot is stopped and the loader dropped they
+ * can be garbage collected, and loading the bot again picks up a new
+ * build of its jar.
+ *
+ * A bot class which is also on the kernel classpath is loaded by the
+ * kernel's loader, and can not be reloaded.
+ *
+ * Replace a bot jar by moving a new file into place rather than
+ * writing over it, as loaders of running bots may still read the old
+ * one.
+ *
+ */
+public class BotClassLoader extends URLClassLoader {
+
+    public static final String DEFAULT_DIRECTORY = "bots";
+
+    private String _classname;
+
+    /**
+     *
+     * @param classname The bot class this loader is created for.
+     * @param urls      The bot jars.
+     * @param parent    The kernel's class loader.
+     *
+     */
+    public BotClassLoader(String classname, URL[] urls, ClassLoader parent) {
+        super(urls, parent);
+        _classname = classname;
+    }
+
+    /**
+     *
+     * Create a loader for a bot class, over the jars in a directory.
+     *
+     * @param classname The bot class.
+     * @param directory The bot jar directory. If it does not exist the
+     *                  loader only delegates to the kernel's loader.
+     *
+     */
+    public static BotClassLoader create(String classname, File directory)
+                                                    throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        File[] files = directory.listFiles();
+        if(files != null) {
+            Arrays.sort(files);
+            for(File file: files) {
+                if(file.isFile() && file.getName().endsWith(".jar")) {
+                    urls.add(file.toURI().toURL());
+                }
+            }
+        }
+        return new BotClassLoader(
+                            classname,
+                            urls.toArray(new URL[urls.size()]),
+                            BotClassLoader.class.getClassLoader());
+    }
+
+    public String getClassname() { return _classname; }
+
+    public String toString() {
+        return "BotClassLoader(" + _classname + ", " +
+                Arrays.toString(getURLs()) + ")";
+    }
+
+}
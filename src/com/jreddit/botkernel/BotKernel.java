@@ -1,9 +1,17 @@
 package com.jreddit.botkernel;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import com.omrlnr.jreddit.*;
 import com.omrlnr.jreddit.utils.Utils;
@@ -21,22 +29,186 @@ public class BotKernel implements Runnable {
     //
     private static final String DEFAULT_BOTS_FILE = "scratch/bots.properties";
 
+    //
+    // Key in the bots file selecting the thread model. 
+    // Either "platform" (the default) or "virtual".
+    //
+    private static final String THREADS_KEY = "kernel.threads";
+
+    //
+    // Keys in the bots file for the per account request budget.
+    //
+    private static final String BUDGET_REQUESTS_KEY = "budget.requests";
+    private static final String BUDGET_PERIOD_KEY   = "budget.period";
+    private static final String BUDGET_BURST_KEY    = "budget.burst";
+
+    //
+    // Keys in the bots file for the shared response cache.
+    //
+    private static final String CACHE_TTL_KEY       = "cache.ttl";
+    private static final String CACHE_CAPACITY_KEY  = "cache.capacity";
+
+    //
+    // Key in the bots file for the seconds after which a shared reddit
+    // session is logged in again.
+    //
+    private static final String SESSION_MAX_AGE_KEY = "session.maxage";
+
+    //
+    // Key in the bots file for the localhost port of the status 
+    // endpoint. No endpoint if not set.
+    //
+    private static final String STATUS_PORT_KEY     = "kernel.status.port";
+
+    //
+    // Key in the bots file for the directory of bot jars. 
+    //
+    private static final String BOT_DIR_KEY         = "kernel.botdir";
+
+    //
+    // Seconds after unloading a bot by which its classes are expected 
+    // to have been collected.
+    //
+    private static final int UNLOAD_GRACE           = 300;
+
+    //
+    // Key in the bots file for the seconds a bot's init() may take.
+    //
+    private static final String INIT_TIMEOUT_KEY    = "kernel.inittimeout";
+
+    public static final int DEFAULT_INIT_TIMEOUT    = 120;
+
+    //
+    // Seconds a timed out init() is given to return once interrupted,
+    // before its bot's class loader is left open rather than closed
+    // under it.
+    //
+    private static final int INIT_CANCEL_GRACE      = 10;
+
+    //
+    // Key in the bots file for the most crawler steps run at once. 
+    // 0, the default, runs every crawler which is due.
+    //
+    private static final String CRAWL_THREADS_KEY   = "kernel.crawlthreads";
+
+    //
+    // Seconds an idle crawl pool thread is kept.
+    //
+    private static final int CRAWL_KEEP_ALIVE       = 60;
+
+    //
+    // Keys in the bots file for logging. log.level.<prefix> sets the 
+    // level of classes whose name starts with the prefix.
+    //
+    private static final String LOG_LEVEL_KEY       = "log.level";
+    private static final String LOG_FILE_KEY        = "log.file";
+    private static final String LOG_MAX_BYTES_KEY   = "log.file.maxbytes";
+    private static final String LOG_MAX_FILES_KEY   = "log.file.count";
+
+    //
+    // Run bots, crawlers and their workers on virtual threads.
+    //
+    private volatile boolean _virtualThreads = false;
+
+    //
+    // Thread.ofVirtual() and the Thread.Builder methods used to create
+    // virtual threads. Looked up reflectively so the kernel still builds
+    // and runs on JVMs without virtual threads, where these are null.
+    //
+    private static Method OF_VIRTUAL;
+    private static Method BUILDER_NAME;
+    private static Method BUILDER_UNSTARTED;
+
+    static {
+        try {
+            OF_VIRTUAL = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            BUILDER_NAME = builder.getMethod("name", String.class);
+            BUILDER_UNSTARTED = builder.getMethod("unstarted", Runnable.class);
+        } catch(Exception e) {
+            OF_VIRTUAL = null;
+        }
+    }
+
     //
     // A list of crawler we are managing.
+    // Changes are made under _lock, but the collections can be read
+    // without it, e.g. by the status server.
     //
-    private List<Crawler> _crawlers = new ArrayList<Crawler>();
+    private List<Crawler> _crawlers = new CopyOnWriteArrayList<Crawler>();
 
     //
     // A list of bots we are managing. 
     //
-    private List<Bot> _bots = new ArrayList<Bot>();
+    private List<Bot> _bots = new CopyOnWriteArrayList<Bot>();
+
+    private Map<Runnable, Thread> _threadMap = 
+                                new ConcurrentHashMap<Runnable, Thread>();
+
+    //
+    // Class loader of each bot loaded from the bot directory.
+    //
+    private Map<Bot, BotClassLoader> _loaders = 
+                                new ConcurrentHashMap<Bot, BotClassLoader>();
+
+    private File _botDirectory = new File(BotClassLoader.DEFAULT_DIRECTORY);
+
+    private volatile int _initTimeout = DEFAULT_INIT_TIMEOUT;
+
+    //
+    // The load whose init() runs on this thread, so the crawlers it
+    // adds can be removed again if it fails.
+    //
+    private ThreadLocal<Load> _initializing = new ThreadLocal<Load>();
+
+    //
+    // Crawler steps are scheduled on one timer thread and run on the
+    // crawl pool, whose threads exit when idle. Created when the first 
+    // crawler is added.
+    //
+    private volatile ScheduledThreadPoolExecutor _crawlTimer = null;
+    private volatile ThreadPoolExecutor _crawlPool = null;
+    private int _crawlThreads = 0;
+
+    /**
+     *
+     * A bot being loaded. Done once its init() has finished, failed or
+     * timed out.
+     *
+     */
+    private static class Load {
+        String classname;
+        Bot bot;
+        BotClassLoader loader;
+        List<Load> dependencies = new ArrayList<Load>();
+        List<Crawler> crawlers = new CopyOnWriteArrayList<Crawler>();
+        volatile boolean loaded;
+        CountDownLatch done = new CountDownLatch(1);
+    }
+
+    //
+    // Class loaders of stopped bots, until they are collected.
+    //
+    private List<Unloaded> _unloaded = new CopyOnWriteArrayList<Unloaded>();
 
-    private Map<Runnable, Thread> _threadMap = new HashMap<Runnable, Thread>();
+    private static class Unloaded {
+        String name;
+        long time;
+        boolean reported;
+        WeakReference<ClassLoader> loader;
+    }
+
+    //
+    // Local HTTP status endpoint, if enabled.
+    //
+    private StatusServer _statusServer = null;
 
     private static BotKernel _botKernel = null; 
 
     private Object _lock    = new Object();
-    private Object _logLock = new Object();
+
+    private KernelLogger _logger = 
+                            new KernelLogger(KernelLogger.DEFAULT_CAPACITY);
 
     //
     // Ensure there is only one BotKernel in this VM instance.
@@ -80,11 +252,15 @@ public class BotKernel implements Runnable {
             //
             // Start the crawler.
             //
-            Thread thread = new Thread(crawler);
-            thread.setName(crawler.getName());
-            thread.start();
-    
-            _threadMap.put(crawler, thread);
+            startCrawlExecutors();
+            crawler.start(_crawlTimer, _crawlPool);
+
+            register("Crawler", crawler.getName(), crawler);
+
+            Load load = _initializing.get();
+            if(load != null) {
+                load.crawlers.add(crawler);
+            }
     
             log("addCrawler() Crawler " + crawler.getName() + " started.");
 
@@ -106,20 +282,26 @@ public class BotKernel implements Runnable {
             _crawlers.remove(crawler);
         }
 
+        unregister("Crawler", crawler.getName());
+
         crawler.shutdown();
 
         //
-        // Join thread only outside of synchronized block.
+        // Wait only outside of synchronized block.
         // Otherwise we deadlock if it is calling into us
         // and grabbing the lock.
         //
-        stopThread(crawler); 
+        awaitCrawler(crawler); 
     }
 
     public void shutdownKernel() {
 
         log("INFO Shutting down botkernel...");
 
+        if(_statusServer != null) {
+            _statusServer.stop();
+        }
+
         //
         // Wonder if we should spin a shutdown thread for each
         // one of these...
@@ -138,6 +320,7 @@ public class BotKernel implements Runnable {
         //
         for(Bot bot: _bots) {
             stopThread(bot);
+            unregister("Bot", bot.getName());
         }
 
         //
@@ -148,7 +331,17 @@ public class BotKernel implements Runnable {
             crawler.shutdown();
         }
         for(Crawler crawler: _crawlers) {
-            stopThread(crawler);
+            awaitCrawler(crawler);
+            unregister("Crawler", crawler.getName());
+        }
+
+        synchronized(_lock) {
+            if(_crawlTimer != null) {
+                _crawlTimer.shutdown();
+                _crawlPool.shutdown();
+                _crawlTimer = null;
+                _crawlPool = null;
+            }
         }
 
 
@@ -161,6 +354,7 @@ public class BotKernel implements Runnable {
         logInfo();
 
         log("INFO BotKernel shut down...");
+        _logger.flush();
     }
 
     public void stopBot(String name) {
@@ -198,8 +392,185 @@ public class BotKernel implements Runnable {
             // into here (like for log() calls.)
             //
             stopThread(removeBot); 
+
+            unregister("Bot", name);
+
+            unloadClasses(removeBot);
+        }
+
+    }
+
+    /**
+     *
+     * Stop a bot and load its class again, from a new class loader, so
+     * a new build of the bot's jar in the bot directory takes effect.
+     * Crawlers keep running. Listeners and criteria the bot left on 
+     * crawlers are removed with its classes.
+     *
+     * @return true if the new instance was loaded.
+     *
+     */
+    public boolean reloadBot(String name) {
+        String classname = null;
+        for(Bot bot: _bots) {
+            if(bot.getName().equals(name)) {
+                classname = bot.getClass().getName();
+                break;
+            }
+        }
+        if(classname == null) {
+            log("ERROR No bot " + name + " to reload.");
+            return false;
         }
 
+        log("Reloading bot " + name + " (" + classname + ")");
+        stopBot(name);
+        return loadBot(classname);
+    }
+
+    /**
+     *
+     * Drop the class loader of a stopped bot. Its listeners and 
+     * criteria still registered with crawlers are removed, and the 
+     * loader is watched until it is collected. See checkUnloaded().
+     *
+     */
+    private void unloadClasses(Bot bot) {
+        BotClassLoader loader = _loaders.remove(bot);
+        if(loader == null) {
+            return;
+        }
+
+        for(Crawler crawler: _crawlers) {
+            int removed = crawler.removeLoadedBy(loader);
+            if(removed > 0) {
+                log("Removed " + removed + " listeners and criteria of " + 
+                    bot.getName() + " from crawler " + crawler.getName());
+            }
+        }
+
+        try {
+            loader.close();
+        } catch(IOException ioe) {
+            log("ERROR Closing class loader of " + bot.getName() + 
+                ": " + ioe);
+        }
+
+        Unloaded unloaded = new Unloaded();
+        unloaded.name = bot.getName();
+        unloaded.time = System.currentTimeMillis();
+        unloaded.loader = new WeakReference<ClassLoader>(loader);
+        _unloaded.add(unloaded);
+    }
+
+    /**
+     *
+     * Check that the classes of stopped bots have been garbage 
+     * collected. Bots whose class loader is still reachable UNLOAD_GRACE
+     * seconds after they were stopped are logged as leaked, once. 
+     * Something still refers to one of their classes or objects, e.g. a
+     * thread they started, a listener on a crawler not managed by the
+     * kernel or a static cache.
+     *
+     * @return The names of bots whose classes leaked.
+     *
+     */
+    public List<String> checkUnloaded() {
+        List<String> leaked = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        for(Unloaded unloaded: _unloaded) {
+            if(unloaded.loader.get() == null) {
+                log("Classes of stopped bot " + unloaded.name + 
+                    " collected after " + (now - unloaded.time) / 1000 + "s");
+                _unloaded.remove(unloaded);
+            } else if(now - unloaded.time > UNLOAD_GRACE * 1000L) {
+                leaked.add(unloaded.name);
+                if(!unloaded.reported) {
+                    unloaded.reported = true;
+                    log("ERROR Classes of stopped bot " + unloaded.name + 
+                        " not collected after " + UNLOAD_GRACE + 
+                        "s. Leaked?");
+                }
+            }
+        }
+        return leaked;
+    }
+
+    /**
+     *
+     * The number of stopped bots whose classes have not been collected
+     * yet.
+     *
+     */
+    public int getUnloadedPending() {
+        return _unloaded.size();
+    }
+
+    private void awaitCrawler(Crawler crawler) {
+        try {
+            log("Waiting for crawler " + crawler.getName() + " to stop...");
+            if(crawler.awaitShutdown()) {
+                log("Crawler " + crawler.getName() + " stopped.");
+            } else {
+                log("Not waiting on crawler to stop its own step.");
+            }
+        } catch(InterruptedException ie) {
+            ie.printStackTrace();
+            throw new RuntimeException(ie);
+        }
+    }
+
+    /**
+     *
+     * Set the most crawler steps, passes or adaptive visits, run at 
+     * once. Crawlers due while that many are crawling wait for one to 
+     * finish. 0 runs every crawler which is due. Only takes effect 
+     * before the first crawler is added.
+     *
+     */
+    public void setCrawlThreads(int threads) {
+        synchronized(_lock) {
+            if(_crawlPool != null) {
+                log("ERROR Crawl pool already started. " +
+                    "Crawl threads not changed.");
+                return;
+            }
+            _crawlThreads = Math.max(0, threads);
+        }
+    }
+
+    /**
+     *
+     * Create the crawl timer and pool if not yet created.
+     * Called with _lock held.
+     *
+     */
+    private void startCrawlExecutors() {
+        if(_crawlTimer != null) {
+            return;
+        }
+        _crawlTimer = new ScheduledThreadPoolExecutor(
+                                    1, getThreadFactory("crawl-timer"));
+        //
+        // wake() cancels a step due hours from now. Drop it from the 
+        // queue rather than keeping it until then.
+        //
+        _crawlTimer.setRemoveOnCancelPolicy(true);
+
+        if(_crawlThreads > 0) {
+            _crawlPool = new ThreadPoolExecutor(
+                                _crawlThreads, _crawlThreads,
+                                CRAWL_KEEP_ALIVE, TimeUnit.SECONDS,
+                                new LinkedBlockingQueue<Runnable>(),
+                                getThreadFactory("crawl"));
+            _crawlPool.allowCoreThreadTimeOut(true);
+        } else {
+            _crawlPool = new ThreadPoolExecutor(
+                                0, Integer.MAX_VALUE,
+                                CRAWL_KEEP_ALIVE, TimeUnit.SECONDS,
+                                new SynchronousQueue<Runnable>(),
+                                getThreadFactory("crawl"));
+        }
     }
 
     private void stopThread(Runnable runnable) {
@@ -236,53 +607,574 @@ public class BotKernel implements Runnable {
     }
 
 
-    public void loadBot(String classname) {
+    /**
+     *
+     * Select the thread model used for bots, crawlers and crawler
+     * workers started from now on.
+     *
+     * @param b     true to use virtual threads, false for platform threads.
+     *              Ignored (with a log message) if this JVM does not 
+     *              support virtual threads.
+     *
+     */
+    public void setVirtualThreads(boolean b) {
+        if(b && OF_VIRTUAL == null) {
+            log("ERROR Virtual threads not supported by this JVM. " +
+                "Using platform threads.");
+            b = false;
+        }
+        _virtualThreads = b;
+    }
+
+    public boolean isVirtualThreads() { return _virtualThreads; }
+
+    /**
+     *
+     * Create an unstarted thread for a kernel managed runnable, 
+     * using the kernel's thread model.
+     *
+     * @param runnable  The runnable to run.
+     * @param name      The thread name.
+     *
+     */
+    public Thread newThread(Runnable runnable, String name) {
+        if(_virtualThreads) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = BUILDER_NAME.invoke(builder, name);
+                return (Thread)BUILDER_UNSTARTED.invoke(builder, runnable);
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        Thread thread = new Thread(runnable);
+        thread.setName(name);
+        return thread;
+    }
+
+    /**
+     *
+     * Get a ThreadFactory creating threads with the kernel's thread model.
+     *
+     * @param prefix    Thread names are prefix-0, prefix-1, ...
+     *
+     */
+    public ThreadFactory getThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private int _count = 0;
+            public synchronized Thread newThread(Runnable runnable) {
+                return BotKernel.this.newThread(
+                                        runnable, prefix + "-" + (_count++));
+            }
+        };
+    }
+
+    /**
+     *
+     * Load a bot, from its own class loader over the jars in the bot 
+     * directory, and start its thread.
+     *
+     * @return true if the bot was loaded.
+     *
+     */
+    public boolean loadBot(String classname) {
+        return loadBots(Collections.singletonList(classname)) == 1;
+    }
+
+    /**
+     *
+     * Load bots and start their threads.
+     *
+     * The bots' init() methods, which typically log in to reddit, run in
+     * parallel and without holding the kernel lock, each limited to the
+     * init timeout. A DependentBot's init() waits for the bots it depends
+     * on. Each bot is registered and started as soon as its own init()
+     * finishes. Returns when all of them are running or have failed.
+     *
+     * @param classnames    The bot classes.
+     *
+     * @return The number of bots loaded.
+     *
+     */
+    public int loadBots(List<String> classnames) {
+        long start = System.currentTimeMillis();
+
+        List<Load> loads = new ArrayList<Load>();
+        for(String classname: classnames) {
+            Load load = prepare(classname);
+            if(load != null) {
+                loads.add(load);
+            }
+        }
+
+        Map<String, Load> byName = new HashMap<String, Load>();
+        for(Load load: loads) {
+            byName.put(load.bot.getName(), load);
+        }
+
+        List<Load> resolved = new ArrayList<Load>();
+        for(Load load: loads) {
+            if(resolve(load, byName)) {
+                resolved.add(load);
+            } else {
+                fail(load);
+            }
+        }
+
+        List<Load> runnable = new ArrayList<Load>();
+        for(Load load: resolved) {
+            if(inCycle(load, load, new HashSet<Load>())) {
+                log("ERROR Bot " + load.bot.getName() + 
+                    " is in a dependency cycle. Not loading it.");
+                fail(load);
+            } else {
+                runnable.add(load);
+            }
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool(
+                                                getThreadFactory("bot-init"));
+        try {
+            for(final Load load: runnable) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        init(load);
+                    }
+                });
+            }
+
+            int loaded = 0;
+            for(Load load: loads) {
+                load.done.await();
+                if(load.loaded) {
+                    loaded++;
+                }
+            }
+
+            log("Loaded " + loaded + " of " + classnames.size() + 
+                " bots in " + (System.currentTimeMillis() - start) + "ms");
+            return loaded;
+
+        } catch(InterruptedException ie) {
+            log("ERROR Interrupted loading bots.");
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     *
+     * Set the seconds a bot's init() may take before it is interrupted
+     * and the bot is not started.
+     *
+     */
+    public void setInitTimeout(int seconds) {
+        _initTimeout = seconds;
+    }
+
+    /**
+     *
+     * Create the class loader and instance of a bot.
+     *
+     * @return The load, or null if the bot cannot be created.
+     *
+     */
+    private Load prepare(String classname) {
+        BotClassLoader loader = null;
+        try {
+
+            log("Loading bot " + classname);
+
+            loader = BotClassLoader.create(classname, _botDirectory);
+            Class clazz = Class.forName(classname, true, loader);
+            if(clazz.getClassLoader() != loader) {
+                log("INFO Bot " + classname + " is on the kernel " +
+                    "classpath and cannot be reloaded.");
+                loader.close();
+                loader = null;
+            }
+
+            Load load = new Load();
+            load.classname = classname;
+            load.bot = (Bot)clazz.newInstance();
+            load.loader = loader;
+            loader = null;
+            return load;
+
+        } catch (ClassNotFoundException cnfe) {
+            log("Error finding class " + classname);
+        } catch (InstantiationException ie) {
+            log("Error instantiating class " + classname);
+        } catch (IllegalAccessException iae) {
+            log("Illegal access exception for class " + classname);
+        } catch (IOException ioe) {
+            log("Error reading bot directory " + _botDirectory + 
+                " for " + classname + ": " + ioe);
+        } finally {
+            close(loader);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * Find the loads a bot depends on.
+     *
+     * @return false if a dependency is neither being loaded nor running.
+     *
+     */
+    private boolean resolve(Load load, Map<String, Load> byName) {
+        if(!(load.bot instanceof DependentBot)) {
+            return true;
+        }
+        String[] names = ((DependentBot)load.bot).getDependencies();
+        if(names == null) {
+            return true;
+        }
+        for(String name: names) {
+            Load dependency = byName.get(name);
+            if(dependency != null) {
+                load.dependencies.add(dependency);
+                continue;
+            }
+            boolean running = false;
+            for(Bot bot: _bots) {
+                if(bot.getName().equals(name)) {
+                    running = true;
+                }
+            }
+            if(!running) {
+                log("ERROR Bot " + load.bot.getName() + " depends on " + 
+                    name + ", which is not loaded. Not loading it.");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean inCycle(Load target, Load load, Set<Load> seen) {
+        for(Load dependency: load.dependencies) {
+            if(dependency == target) {
+                return true;
+            }
+            if(seen.add(dependency) && inCycle(target, dependency, seen)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * Wait for a bot's dependencies, run its init() with a timeout and
+     * start it. Runs on a bot-init thread.
+     *
+     */
+    private void init(final Load load) {
+        String name = load.bot.getName();
+        try {
+            for(Load dependency: load.dependencies) {
+                dependency.done.await();
+                if(!dependency.loaded) {
+                    log("ERROR Bot " + name + " depends on " + 
+                        dependency.bot.getName() + 
+                        ", which failed to load. Not loading it.");
+                    fail(load);
+                    return;
+                }
+            }
+
+            FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                public void run() {
+                    _initializing.set(load);
+                    try {
+                        load.bot.init();
+                    } finally {
+                        _initializing.remove();
+                    }
+                }
+            }, null);
+            Thread thread = newThread(task, name + "-init");
+            thread.start();
+
+            try {
+                task.get(_initTimeout, TimeUnit.SECONDS);
+            } catch(TimeoutException te) {
+                task.cancel(true);
+                log("ERROR Bot " + name + " init() took more than " + 
+                    _initTimeout + "s. Not starting it.");
+                undo(load, thread);
+                return;
+            } catch(ExecutionException ee) {
+                log("ERROR Bot " + name + " init() failed: " + ee.getCause());
+                undo(load, thread);
+                return;
+            }
+
+            start(load);
+
+        } catch(InterruptedException ie) {
+            log("ERROR Interrupted loading bot " + name);
+            fail(load);
+        } catch(RuntimeException re) {
+            log("ERROR Starting bot " + name + ": " + re);
+            fail(load);
+        }
+    }
+
+    /**
+     *
+     * Register a bot and start its thread, atomically with respect to
+     * the kernel lock.
+     *
+     */
+    private void start(Load load) {
+        Bot bot = load.bot;
         synchronized(_lock) {
+            Thread thread = newThread(bot, bot.getName());
+            _threadMap.put(bot, thread);
+            if(load.loader != null) {
+                _loaders.put(bot, load.loader);
+            }
+            _bots.add(bot);
+            thread.start();
+            register("Bot", bot.getName(), new BotMonitor(bot, thread));
+        }
+        log("Bot " + load.classname + " (" + bot.getName() + ") loaded.");
+        load.loaded = true;
+        load.done.countDown();
+    }
+
+    /**
+     *
+     * Undo what a bot's failed or timed out init() registered and fail
+     * it. The bot is shut down, the crawlers it added are removed, and
+     * so are listeners and criteria from its class loader on the other
+     * crawlers.
+     *
+     * The class loader is only closed once init() has returned. If it
+     * is still running INIT_CANCEL_GRACE seconds after being 
+     * interrupted, the loader is left open and watched as leaked.
+     *
+     */
+    private void undo(Load load, Thread thread) throws InterruptedException {
+        String name = load.bot.getName();
+
+        thread.join(INIT_CANCEL_GRACE * 1000L);
+
+        try {
+            load.bot.shutdown();
+        } catch(RuntimeException re) {
+            log("ERROR Shutting down bot " + name + ": " + re);
+        }
+
+        for(Crawler crawler: load.crawlers) {
+            if(_crawlers.contains(crawler)) {
+                log("Removing crawler " + crawler.getName() + 
+                    " added by bot " + name);
+                removeCrawler(crawler);
+            }
+        }
+
+        if(load.loader != null) {
+            for(Crawler crawler: _crawlers) {
+                int removed = crawler.removeLoadedBy(load.loader);
+                if(removed > 0) {
+                    log("Removed " + removed + " listeners and criteria " + 
+                        "of " + name + " from crawler " + crawler.getName());
+                }
+            }
+        }
+
+        if(thread.isAlive()) {
+            log("ERROR Bot " + name + " init() still running " + 
+                INIT_CANCEL_GRACE + "s after being interrupted. " +
+                "Leaving its class loader open.");
+            if(load.loader != null) {
+                Unloaded unloaded = new Unloaded();
+                unloaded.name = name;
+                unloaded.time = System.currentTimeMillis();
+                unloaded.loader = 
+                            new WeakReference<ClassLoader>(load.loader);
+                _unloaded.add(unloaded);
+                load.loader = null;
+            }
+        }
+
+        fail(load);
+    }
+
+    private void fail(Load load) {
+        close(load.loader);
+        load.loader = null;
+        load.done.countDown();
+    }
+
+    private void close(BotClassLoader loader) {
+        if(loader != null) {
             try {
+                loader.close();
+            } catch(IOException ioe) {
+                log("ERROR Closing " + loader + ": " + ioe);
+            }
+        }
+    }
 
-                log("Loading bot " + classname);
-    
-                Class clazz = Class.forName(classname);
-                Bot bot = (Bot)clazz.newInstance();
-                bot.init();
-            
-                Thread thread = new Thread(bot);
-                thread.setName(bot.getName());
-                thread.start();
-            
-                _bots.add(bot);
-    
-                _threadMap.put(bot, thread);
-    
-                log("Bot " + classname + " (" + bot.getName() + ") loaded.");
-    
-            } catch (ClassNotFoundException cnfe) {
-                log("Error finding class " + classname);
-            } catch (InstantiationException ie) {
-                log("Error instantiating class " + classname);
-            } catch (IllegalAccessException iae) {
-                log("Illegal access exception for class " + classname);
+    /**
+     *
+     * Get the bots currently loaded. Does not take the kernel lock.
+     *
+     */
+    public List<Bot> getBots() {
+        return new ArrayList<Bot>(_bots);
+    }
+
+    /**
+     *
+     * Get the crawlers currently managed. Does not take the kernel lock.
+     *
+     */
+    public List<Crawler> getCrawlers() {
+        return new ArrayList<Crawler>(_crawlers);
+    }
+
+    /**
+     *
+     * Get the thread running a bot. Crawlers have no thread of their own.
+     *
+     * @return The thread, or null if there is none.
+     *
+     */
+    public Thread getThread(Runnable runnable) {
+        return _threadMap.get(runnable);
+    }
+
+    /**
+     *
+     * Register the MBean of a crawler or bot with the platform MBean
+     * server, as com.jreddit.botkernel:type=<type>,name=<name>.
+     *
+     */
+    private void register(String type, String name, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName(type, name);
+            if(server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
             }
+            server.registerMBean(mbean, objectName);
+        } catch(JMException jme) {
+            log("ERROR Cannot register MBean for " + type + " " + name + 
+                ": " + jme);
         }
     }
 
-    //
-    // Used for logging
-    //
+    private void unregister(String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName(type, name);
+            if(server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch(JMException jme) {
+            log("ERROR Cannot unregister MBean for " + type + " " + name + 
+                ": " + jme);
+        }
+    }
+
+    private static ObjectName getObjectName(String type, String name) 
+                                        throws MalformedObjectNameException {
+        return new ObjectName("com.jreddit.botkernel:type=" + type + 
+                              ",name=" + ObjectName.quote(name));
+    }
+
+    /**
+     *
+     * Only safe to use from one thread at a time. The logger formats 
+     * dates on its own writer thread.
+     *
+     * @deprecated  SimpleDateFormat is not thread safe.
+     *
+     */
+    @Deprecated
     public static DateFormat DATE_FORMAT = 
                         new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+    public KernelLogger getLogger() {
+        return _logger;
+    }
+
     /**
      * Write a log message.
      */
     public void log(String msg) {
-        synchronized(_logLock) {
-            Date date = new Date();
-            String prettyDate = DATE_FORMAT.format(date);
-            System.out.println(
-                prettyDate + " " +
-                "[" + Thread.currentThread().getName() + "] " + 
-                msg);
+        _logger.log(null, KernelLogger.INFO, msg);
+    }
+
+    /**
+     *
+     * Write a log message at a level, filtered by the level set for the 
+     * source class.
+     *
+     */
+    public void log(Class<?> source, int level, String msg) {
+        _logger.log(source, level, msg);
+    }
+
+    /**
+     *
+     * Write a log message formatted with String.format(), only if the 
+     * level is enabled for the source class. 
+     *
+     */
+    public void log(Class<?> source, int level, String format, Object... args) {
+        _logger.log(source, level, format, args);
+    }
+
+    public boolean isLoggable(Class<?> source, int level) {
+        return _logger.isEnabled(source, level);
+    }
+
+    /**
+     *
+     * Configure the logger from the bots file.
+     *
+     */
+    private void configureLogging(Properties props) {
+        for(String key: props.stringPropertyNames()) {
+            if(!key.equals(LOG_LEVEL_KEY) && 
+               !key.startsWith(LOG_LEVEL_KEY + ".")) {
+                continue;
+            }
+            int level = KernelLogger.parseLevel(props.getProperty(key));
+            if(level < 0) {
+                log("ERROR Invalid log level " + key + "=" + 
+                    props.getProperty(key));
+            } else if(key.equals(LOG_LEVEL_KEY)) {
+                _logger.setLevel(level);
+            } else {
+                _logger.setLevel(
+                        key.substring(LOG_LEVEL_KEY.length() + 1), level);
+            }
+        }
+
+        String file = props.getProperty(LOG_FILE_KEY);
+        if(file != null && file.trim().length() > 0) {
+            try {
+                long maxBytes = Long.parseLong(props.getProperty(
+                            LOG_MAX_BYTES_KEY,
+                            "" + KernelLogger.DEFAULT_MAX_BYTES).trim());
+                int maxFiles = Integer.parseInt(props.getProperty(
+                            LOG_MAX_FILES_KEY,
+                            "" + KernelLogger.DEFAULT_MAX_FILES).trim());
+                log("Logging to " + file.trim() + ", rotated at " + 
+                    maxBytes + " bytes, keeping " + maxFiles + " files.");
+                _logger.setFile(file.trim(), maxBytes, maxFiles);
+            } catch(NumberFormatException nfe) {
+                log("ERROR Invalid log file settings. Logging to standard out.");
+            }
         }
     }
 
@@ -293,8 +1185,22 @@ public class BotKernel implements Runnable {
      */
     public void logInfo() {
         log("Threads:   " + Thread.activeCount() );
+        log("Managed:   " + _threadMap.size() + 
+                (_virtualThreads ? " (virtual)" : " (platform)") );
         log("Bots:      " + _bots.size() );
         log("Crawlers:  " + _crawlers.size() );
+        ThreadPoolExecutor pool = _crawlPool;
+        if(pool != null) {
+            log("Crawl pool: " + pool.getPoolSize() + " threads, " +
+                pool.getActiveCount() + " crawling, " + 
+                pool.getQueue().size() + " waiting");
+        }
+        log("Sessions:  " + SessionManager.getSessionManager() );
+        List<String> leaked = checkUnloaded();
+        if(_unloaded.size() > 0) {
+            log("Unloaded:  " + _unloaded.size() + 
+                " stopped bots not collected yet, leaked " + leaked );
+        }
     }
 
 
@@ -305,10 +1211,100 @@ public class BotKernel implements Runnable {
             InputStream in = new FileInputStream(DEFAULT_BOTS_FILE);
             props.load(in);
             in.close();
+
+            configureLogging(props);
+
+            _botDirectory = new File(props.getProperty(
+                        BOT_DIR_KEY, BotClassLoader.DEFAULT_DIRECTORY).trim());
+            log("Loading bot jars from " + _botDirectory);
+
+            String threads = props.getProperty(THREADS_KEY);
+            if(threads != null) {
+                setVirtualThreads(threads.trim().equals("virtual"));
+            }
+            log("Using " + (_virtualThreads ? "virtual" : "platform") + 
+                " threads.");
+
+            try {
+                int requests = Integer.parseInt(props.getProperty(
+                                BUDGET_REQUESTS_KEY,
+                                "" + RequestBudget.DEFAULT_REQUESTS).trim());
+                int period = Integer.parseInt(props.getProperty(
+                                BUDGET_PERIOD_KEY,
+                                "" + RequestBudget.DEFAULT_PERIOD).trim());
+                int burst = Integer.parseInt(props.getProperty(
+                                BUDGET_BURST_KEY,
+                                "" + RequestBudget.DEFAULT_BURST).trim());
+                RequestBudget.getRequestBudget().setLimit(
+                                                requests, period, burst);
+                log("Request budget " + requests + " per " + period + 
+                    "s per account, burst " + burst + ".");
+            } catch(NumberFormatException nfe) {
+                log("ERROR Invalid request budget. Using defaults.");
+            }
+
+            try {
+                int ttl = Integer.parseInt(props.getProperty(
+                                CACHE_TTL_KEY,
+                                "" + ResponseCache.DEFAULT_TTL).trim());
+                int capacity = Integer.parseInt(props.getProperty(
+                                CACHE_CAPACITY_KEY,
+                                "" + ResponseCache.DEFAULT_CAPACITY).trim());
+                ResponseCache.getResponseCache().setLimit(ttl, capacity);
+                log("Response cache ttl " + ttl + "s, " + capacity + 
+                    " entries.");
+            } catch(NumberFormatException nfe) {
+                log("ERROR Invalid response cache settings. Using defaults.");
+            }
+
+            try {
+                int maxAge = Integer.parseInt(props.getProperty(
+                                SESSION_MAX_AGE_KEY,
+                                "" + SessionManager.DEFAULT_MAX_AGE).trim());
+                SessionManager.getSessionManager().setMaxAge(maxAge);
+                log("Sessions logged in again after " + maxAge + "s.");
+            } catch(NumberFormatException nfe) {
+                log("ERROR Invalid session max age. Using default.");
+            }
+
+            String statusPort = props.getProperty(STATUS_PORT_KEY);
+            if(statusPort != null && statusPort.trim().length() > 0) {
+                try {
+                    _statusServer = new StatusServer(
+                                    this, Integer.parseInt(statusPort.trim()));
+                    log("Status endpoint http://localhost:" + 
+                        _statusServer.getPort() + "/status and /metrics");
+                } catch(NumberFormatException nfe) {
+                    log("ERROR Invalid status port " + statusPort);
+                } catch(IOException ioe) {
+                    log("ERROR Cannot start status endpoint on port " + 
+                        statusPort + ": " + ioe);
+                }
+            }
             
+            try {
+                setInitTimeout(Integer.parseInt(props.getProperty(
+                                INIT_TIMEOUT_KEY,
+                                "" + DEFAULT_INIT_TIMEOUT).trim()));
+            } catch(NumberFormatException nfe) {
+                log("ERROR Invalid bot init timeout. Using " + 
+                    _initTimeout + "s.");
+            }
+
+            String crawlThreads = props.getProperty(CRAWL_THREADS_KEY);
+            if(crawlThreads != null) {
+                try {
+                    setCrawlThreads(Integer.parseInt(crawlThreads.trim()));
+                    log("Crawl threads " + _crawlThreads + ".");
+                } catch(NumberFormatException nfe) {
+                    log("ERROR Invalid crawl threads " + crawlThreads);
+                }
+            }
+
             Set<String> keys = props.stringPropertyNames();
             List<String> sortedKeys = new ArrayList<String>(keys);
             Collections.sort(sortedKeys);
+            List<String> classnames = new ArrayList<String>();
             for(String key: sortedKeys) {
 
                 // log("Inspecting key " + key);
@@ -318,12 +1314,16 @@ public class BotKernel implements Runnable {
                     //
                     // We are loading a bot.
                     // 
-                    String classname = props.getProperty(key);
-                    loadBot(classname);
+                    classnames.add(props.getProperty(key));
 
                 }
             }
 
+            //
+            // Bots log in during init(), so initialize them all at once.
+            //
+            loadBots(classnames);
+
         } catch(IOException ioe) {
             ioe.printStackTrace();
             log("IOException loading default bots.");
@@ -0,0 +1,35 @@
+package com.jreddit.botkernel;
+
+/**
+ *
+ * Runtime state of a bot, registered with the platform MBean server
+ * by the BotKernel for every bot it loads.
+ *
+ */
+public interface BotMXBean {
+
+    public String getName();
+
+    public String getClassName();
+
+    public String getThreadName();
+
+    /**
+     *
+     * The state of the bot's thread, e.g. RUNNABLE or TIMED_WAITING.
+     *
+     */
+    public String getThreadState();
+
+    public boolean isAlive();
+
+    /**
+     *
+     * When the bot was loaded, in milliseconds since the epoch.
+     *
+     */
+    public long getLoadedTime();
+
+    public long getUptimeSeconds();
+
+}
@@ -0,0 +1,37 @@
+package com.jreddit.botkernel;
+
+/**
+ *
+ * BotMXBean of a loaded bot and its thread.
+ *
+ */
+class BotMonitor implements BotMXBean {
+
+    private Bot _bot;
+
+    private Thread _thread;
+
+    private long _loadedTime = System.currentTimeMillis();
+
+    BotMonitor(Bot bot, Thread thread) {
+        _bot = bot;
+        _thread = thread;
+    }
+
+    public String getName() { return _bot.getName(); }
+
+    public String getClassName() { return _bot.getClass().getName(); }
+
+    public String getThreadName() { return _thread.getName(); }
+
+    public String getThreadState() { return _thread.getState().name(); }
+
+    public boolean isAlive() { return _thread.isAlive(); }
+
+    public long getLoadedTime() { return _loadedTime; }
+
+    public long getUptimeSeconds() {
+        return (System.currentTimeMillis() - _loadedTime) / 1000;
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.jreddit.botkernel;
+
+/**
+ *
+ * Bounded cache of submission comment counts.
+ *
+ * Used by crawlers to skip submissions whose comment count has not 
+ * changed since they were last crawled. Keys are submission fullnames 
+ * decoded to primitive longs (see Utils.fullnameToLong()) and are kept,
+ * with their counts, in an open addressing table of primitive arrays,
+ * so an entry costs no objects at all.
+ *
+ * When the cache is full each insert evicts one entry not used
+ * recently, chosen by a CLOCK sweep over the table, keeping memory
+ * constant however long the crawler runs. Eviction happens in place,
+ * so it never allocates or pauses the crawl.
+ *
+ */
+public class CommentCountCache {
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    //
+    // Returned for missing keys. Comment counts are never negative.
+    //
+    public static final long MISSING = -1;
+
+    private int _capacity;
+
+    //
+    // Open addressing table. Key 0 marks an empty slot.
+    //
+    private long[] _keys;
+    private long[] _values;
+
+    //
+    // CLOCK reference bits, set when an entry is used and cleared as
+    // the hand passes it.
+    //
+    private boolean[] _used;
+    private int _hand;
+
+    private int _size;
+
+    private long _hits;
+    private long _misses;
+    private long _evictions;
+
+    /**
+     *
+     * Create a new cache.
+     *
+     * @param capacity  The maximum number of submissions remembered.
+     *
+     */
+    public CommentCountCache(int capacity) {
+        _capacity = Math.max(1, capacity);
+        int tableSize = Integer.highestOneBit(_capacity * 2 - 1) << 1;
+        _keys = new long[tableSize];
+        _values = new long[tableSize];
+        _used = new boolean[tableSize];
+    }
+
+    /**
+     *
+     * Get the cached comment count of a submission.
+     *
+     * @param key   The decoded submission fullname.
+     *
+     * @return The cached count, or MISSING.
+     *
+     */
+    public synchronized long get(long key) {
+        int slot = find(key);
+        if(_keys[slot] == 0) {
+            _misses++;
+            return MISSING;
+        }
+        _hits++;
+        _used[slot] = true;
+        return _values[slot];
+    }
+
+    /**
+     *
+     * Cache the comment count of a submission. Only get() counts hits
+     * and misses.
+     *
+     * @param key   The decoded submission fullname.
+     * @param value The comment count.
+     *
+     * @return The previously cached count, or MISSING.
+     *
+     */
+    public synchronized long put(long key, long value) {
+        int slot = find(key);
+        if(_keys[slot] != 0) {
+            long previous = _values[slot];
+            _values[slot] = value;
+            _used[slot] = true;
+            return previous;
+        }
+
+        if(_size >= _capacity) {
+            evict();
+            slot = find(key);
+        }
+
+        _keys[slot] = key;
+        _values[slot] = value;
+        _used[slot] = true;
+        _size++;
+        return MISSING;
+    }
+
+    /**
+     *
+     * Callback for visiting every cached entry.
+     *
+     */
+    public interface Visitor {
+        public void visit(long key, long value);
+    }
+
+    /**
+     *
+     * Visit every cached entry, without touching reference bits or 
+     * counters.
+     *
+     */
+    public synchronized void forEach(Visitor visitor) {
+        for(int i = 0; i < _keys.length; i++) {
+            if(_keys[i] != 0) {
+                visitor.visit(_keys[i], _values[i]);
+            }
+        }
+    }
+
+    public synchronized int size() { return _size; }
+
+    public int getCapacity() { return _capacity; }
+
+    public synchronized long getHits() { return _hits; }
+
+    public synchronized long getMisses() { return _misses; }
+
+    public synchronized long getEvictions() { return _evictions; }
+
+    public synchronized String toString() {
+        return "size " + _size + "/" + _capacity + 
+               " hits " + _hits + 
+               " misses " + _misses + 
+               " evictions " + _evictions;
+    }
+
+    /**
+     *
+     * Find the slot holding key, or the empty slot where it belongs.
+     *
+     */
+    private int find(long key) {
+        int mask = _keys.length - 1;
+        int slot = hash(key) & mask;
+        while(_keys[slot] != 0 && _keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int)(key ^ (key >>> 32));
+    }
+
+    /**
+     *
+     * Drop one entry not used since the hand last passed it. Entries 
+     * used since are given another round. Ends within two sweeps, as
+     * the first clears every bit.
+     *
+     */
+    private void evict() {
+        int mask = _keys.length - 1;
+        while(true) {
+            int slot = _hand;
+            _hand = (_hand + 1) & mask;
+            if(_keys[slot] == 0) {
+                continue;
+            }
+            if(_used[slot]) {
+                _used[slot] = false;
+                continue;
+            }
+            delete(slot);
+            _evictions++;
+            return;
+        }
+    }
+
+    /**
+     *
+     * Empty a slot, shifting later members of its probe run back into 
+     * the hole, so lookups never stop early at it.
+     *
+     */
+    private void delete(int slot) {
+        int mask = _keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while(_keys[next] != 0) {
+            int home = hash(_keys[next]) & mask;
+            if(((next - home) & mask) >= ((next - hole) & mask)) {
+                _keys[hole] = _keys[next];
+                _values[hole] = _values[next];
+                _used[hole] = _used[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        _keys[hole] = 0;
+        _values[hole] = 0;
+        _used[hole] = false;
+        _size--;
+    }
+
+}
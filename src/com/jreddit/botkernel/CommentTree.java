@@ -0,0 +1,106 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Iterative walk of a submission's comment tree, as returned by
+ * Comments.getComments().
+ *
+ * Comments are visited depth first, each before its replies, with an
+ * explicit stack of iterators instead of recursion, so deep threads 
+ * cannot overflow the thread stack. Top level comments are at depth 0.
+ * Comments deeper than the maximum depth are not visited.
+ *
+ * The tree itself is built whole by jReddit before it is walked, so
+ * memory still grows with the size of the tree, not its depth.
+ *
+ */
+public class CommentTree {
+
+    public static final int DEFAULT_MAX_DEPTH = 100;
+
+    /**
+     *
+     * Receives each comment walked.
+     *
+     */
+    public interface Visitor {
+        public void visit(Comment comment, int depth);
+    }
+
+    private int _tooDeep;
+
+    private int _count;
+
+    /**
+     *
+     * Walk a comment tree.
+     *
+     * @param comments  The top level comments, or null.
+     * @param visitor   The visitor to give each comment to.
+     * @param maxDepth  Replies nested deeper than this are skipped.
+     *
+     */
+    public static CommentTree walk( List<Comment> comments,
+                                    Visitor visitor,
+                                    int maxDepth ) {
+        CommentTree tree = new CommentTree();
+        if(comments == null) {
+            return tree;
+        }
+
+        ArrayDeque<Iterator<Comment>> stack = 
+                                    new ArrayDeque<Iterator<Comment>>();
+        stack.push(comments.iterator());
+
+        while(!stack.isEmpty()) {
+
+            Iterator<Comment> i = stack.peek();
+            if(!i.hasNext()) {
+                stack.pop();
+                continue;
+            }
+
+            //
+            // The depth of a comment is the number of reply lists it is
+            // nested in.
+            //
+            int depth = stack.size() - 1;
+            Comment comment = i.next();
+            tree._count++;
+            visitor.visit(comment, depth);
+
+            List<Comment> replies = comment.getReplies();
+            if(replies != null && !replies.isEmpty()) {
+                if(depth + 1 > maxDepth) {
+                    tree._tooDeep++;
+                } else {
+                    stack.push(replies.iterator());
+                }
+            }
+        }
+
+        return tree;
+    }
+
+    private CommentTree() {
+    }
+
+    /**
+     *
+     * The number of comments visited.
+     *
+     */
+    public int getCount() { return _count; }
+
+    /**
+     *
+     * The number of reply lists skipped as too deep.
+     *
+     */
+    public int getTooDeep() { return _tooDeep; }
+
+}
@@ -0,0 +1,320 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+
+/**
+ *
+ * Adaptive crawl schedule.
+ *
+ * Instead of visiting every subreddit once per pass, keeps the
+ * subreddits in a priority queue keyed by when each is next predicted
+ * to have changed, and hands out whichever is most overdue.
+ *
+ * The prediction comes from the activity seen on each visit, new
+ * submissions plus new comments, as a rate decayed with a half life:
+ *
+ *      rate = decayed activity / decayed time between visits
+ *
+ * A subreddit is due when one new item is expected, but never sooner
+ * than the minimum or later than the maximum interval. A subreddit
+ * never visited is due at once, and visited again soon after to 
+ * measure its rate.
+ *
+ * Visits are also paced to a request budget. Each visit's requests push
+ * back the time the next visit may start, so however busy the
+ * subreddits, the crawler makes no more than the budgeted requests per
+ * hour on average.
+ *
+ */
+public class CrawlScheduler {
+
+    public static final int DEFAULT_MIN_INTERVAL    = 60;
+    public static final int DEFAULT_HALF_LIFE       = 60 * 60 * 6;
+
+    private static final double LN2 = Math.log(2);
+
+    //
+    // Minimum intervals before the second visit of a subreddit, which
+    // gives its first rate.
+    //
+    private static final int PROBE = 5;
+
+    /**
+     *
+     * Activity estimate of one subreddit.
+     *
+     */
+    private static class Entry implements Comparable<Entry> {
+
+        String subreddit;
+
+        //
+        // Decayed activity and decayed observed time, in seconds.
+        //
+        double activity;
+        double time;
+
+        long lastVisit = 0;
+        long due = 0;
+        long visits = 0;
+
+        Entry(String subreddit) {
+            this.subreddit = subreddit;
+        }
+
+        double getRate() {
+            return time > 0 ? activity / time : 0;
+        }
+
+        public int compareTo(Entry o) {
+            return due < o.due ? -1 : (due > o.due ? 1 : 0);
+        }
+    }
+
+    private PriorityQueue<Entry> _queue = new PriorityQueue<Entry>();
+
+    private Map<String, Entry> _entries = new HashMap<String, Entry>();
+
+    //
+    // Entries handed out by next() and not yet returned by visited().
+    //
+    private Map<String, Entry> _visiting = new HashMap<String, Entry>();
+
+    private long _minInterval;
+    private long _maxInterval;
+    private double _halfLife;
+
+    //
+    // Milliseconds a request takes from the budget.
+    //
+    private double _millisPerRequest;
+
+    //
+    // No visit may start before this time.
+    //
+    private long _nextAllowed = 0;
+
+    private long _visits = 0;
+    private long _requests = 0;
+
+    /**
+     *
+     * Create a schedule.
+     *
+     * @param subs              The subreddits to schedule.
+     * @param requestsPerHour   The request budget.
+     * @param minInterval       Minimum seconds between visits of a
+     *                          subreddit.
+     * @param maxInterval       Maximum seconds between visits of a
+     *                          subreddit.
+     * @param halfLife          Seconds after which observed activity
+     *                          counts half.
+     *
+     */
+    public CrawlScheduler(  List<String> subs,
+                            int requestsPerHour,
+                            int minInterval,
+                            int maxInterval,
+                            int halfLife ) {
+        _millisPerRequest = 3600000.0 / Math.max(1, requestsPerHour);
+        _minInterval = minInterval * 1000L;
+        _maxInterval = Math.max(minInterval, maxInterval) * 1000L;
+        _halfLife = Math.max(1, halfLife);
+        setSubreddits(subs);
+    }
+
+    /**
+     *
+     * Replace the scheduled subreddits. Estimates of subreddits
+     * still in the list are kept.
+     *
+     */
+    public synchronized void setSubreddits(List<String> subs) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        _queue.clear();
+        for(String sub: subs) {
+            String key = sub.toLowerCase();
+            if(entries.containsKey(key)) {
+                continue;
+            }
+            Entry entry = _entries.get(key);
+            if(entry == null) {
+                entry = new Entry(sub);
+            }
+            entries.put(key, entry);
+            if(!_visiting.containsKey(key)) {
+                _queue.add(entry);
+            }
+        }
+        _entries = entries;
+    }
+
+    /**
+     *
+     * Get the number of milliseconds until the next visit may start.
+     *
+     * @return 0 if a subreddit is due and the budget allows a visit,
+     *         or Long.MAX_VALUE if there is nothing to schedule.
+     *
+     */
+    public synchronized long getDelay(long now) {
+        Entry entry = _queue.peek();
+        if(entry == null) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, Math.max(entry.due, _nextAllowed) - now);
+    }
+
+    /**
+     *
+     * Take the most overdue subreddit, if a visit may start now.
+     * Hand it back with visited() or failed().
+     *
+     * @return The subreddit, or null if none is due yet.
+     *
+     */
+    public synchronized String next(long now) {
+        if(getDelay(now) > 0) {
+            return null;
+        }
+        Entry entry = _queue.poll();
+        _visiting.put(entry.subreddit.toLowerCase(), entry);
+        return entry.subreddit;
+    }
+
+    /**
+     *
+     * Record a visit and reschedule the subreddit.
+     *
+     * @param subreddit The subreddit visited.
+     * @param activity  New submissions plus new comments seen.
+     * @param requests  Requests the visit made.
+     *
+     */
+    public synchronized void visited(   String subreddit,
+                                        long activity,
+                                        int requests,
+                                        long now ) {
+        Entry entry = _visiting.remove(subreddit.toLowerCase());
+        if(entry == null) {
+            return;
+        }
+
+        if(entry.lastVisit > 0) {
+            //
+            // Decay what was known, then add this interval.
+            //
+            double elapsed = (now - entry.lastVisit) / 1000.0;
+            double decay = Math.exp(-elapsed * LN2 / _halfLife);
+            entry.activity = entry.activity * decay + activity;
+            entry.time = entry.time * decay + elapsed;
+        }
+        entry.lastVisit = now;
+        entry.visits++;
+
+        long interval;
+        if(entry.time == 0) {
+            //
+            // First visit, no rate yet. Come back soon to measure one.
+            //
+            interval = Math.min(_maxInterval, PROBE * _minInterval);
+        } else {
+            interval = getIntervalMillis(entry);
+        }
+        entry.due = now + interval;
+
+        charge(requests, now);
+        requeue(entry);
+    }
+
+    /**
+     *
+     * Return a subreddit whose visit failed, to be tried again after
+     * the minimum interval without changing its estimate.
+     *
+     */
+    public synchronized void failed(String subreddit,
+                                    int requests,
+                                    long now) {
+        Entry entry = _visiting.remove(subreddit.toLowerCase());
+        if(entry == null) {
+            return;
+        }
+        entry.due = now + _minInterval;
+        charge(requests, now);
+        requeue(entry);
+    }
+
+    public synchronized long getVisits() { return _visits; }
+
+    public synchronized long getRequests() { return _requests; }
+
+    /**
+     *
+     * Get the predicted seconds between visits of a subreddit.
+     *
+     * @return The interval, or -1 if the subreddit is not scheduled.
+     *
+     */
+    public synchronized long getInterval(String subreddit) {
+        Entry entry = _entries.get(subreddit.toLowerCase());
+        if(entry == null) {
+            return -1;
+        }
+        return getIntervalMillis(entry) / 1000;
+    }
+
+    public synchronized String toString() {
+        List<Entry> entries = new ArrayList<Entry>(_entries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return Double.compare(b.getRate(), a.getRate());
+            }
+        });
+
+        StringBuffer sb = new StringBuffer();
+        sb.append(entries.size() + " subreddits, " +
+                    _visits + " visits, " +
+                    _requests + " requests, " +
+                    Math.round(3600000 / _millisPerRequest) +
+                    " requests/hour budget");
+        for(int i = 0; i < entries.size() && i < 5; i++) {
+            Entry entry = entries.get(i);
+            if(entry.getRate() == 0) {
+                break;
+            }
+            sb.append(", " + entry.subreddit + " every " +
+                        getInterval(entry.subreddit) + "s");
+        }
+        return sb.toString();
+    }
+
+    /**
+     *
+     * Time until one new item is expected, within the bounds.
+     *
+     */
+    private long getIntervalMillis(Entry entry) {
+        double rate = entry.getRate();
+        long interval = rate > 0 ?
+                (long)Math.min(_maxInterval, 1000 / rate) : _maxInterval;
+        return Math.max(_minInterval, interval);
+    }
+
+    private void charge(int requests, long now) {
+        _visits++;
+        _requests += requests;
+        _nextAllowed = Math.max(_nextAllowed, now) +
+                                (long)(requests * _millisPerRequest);
+    }
+
+    private void requeue(Entry entry) {
+        //
+        // Dropped by setSubreddits() while it was being visited.
+        //
+        if(_entries.get(entry.subreddit.toLowerCase()) == entry) {
+            _queue.add(entry);
+        }
+    }
+
+}
@@ -2,21 +2,34 @@ package com.jreddit.botkernel;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import com.omrlnr.jreddit.*;
 
 /**
  *
- * Reddit Bot Crawler thread.
+ * Reddit Bot Crawler.
+ *
+ * A crawler crawls in steps, a whole pass or for the adaptive schedule
+ * a single visit, run on the kernel's crawl pool. The next step is put
+ * on the kernel's crawl timer when a step ends, so a crawler waiting
+ * for its next step holds no thread.
  *
  */
-public class Crawler implements Runnable {
+public class Crawler implements CrawlerMXBean {
 
     //
     // A list of listeners registered with this crawler.
     //
     private List<CrawlerListener> _listeners = new ArrayList<CrawlerListener>();
 
+    //
+    // Mailboxes of listeners receiving events asynchronously.
+    //
+    private Map<CrawlerListener, ListenerMailbox> _mailboxes = 
+                            new HashMap<CrawlerListener, ListenerMailbox>();
+
     //
     // A list of match criteria.
     //
@@ -25,9 +38,70 @@ public class Crawler implements Runnable {
 
     //
     // Cache Submission comment count as an optimization when crawling.
+    // Bounded, and safe for the units of a parallel crawl to share.
+    //
+    protected CommentCountCache _submissionCommentCount = 
+                new CommentCountCache(CommentCountCache.DEFAULT_CAPACITY);
+
+    //
+    // Crawl state kept across kernel restarts.
+    //
+    private CrawlerState _state;
+
+    //
+    // Comments (and submissions) already matched against our criteria,
+    // so a submission gaining comments only has its new ones matched.
+    //
+    private SeenCommentIndex _seenComments = 
+                new SeenCommentIndex(   SeenCommentIndex.DEFAULT_CAPACITY,
+                                        SeenCommentIndex.DEFAULT_MAX_SUBMISSIONS);
+
+    //
+    // Things matched against our criteria, and things skipped because
+    // they were already matched on an earlier visit.
+    //
+    private LongAdder _evaluations = new LongAdder();
+    private LongAdder _evaluationsSkipped = new LongAdder();
+
+    //
+    // Runtime metrics, exposed through CrawlerMXBean. All lock free,
+    // so they cost the crawl next to nothing.
     //
-    protected Map<String, Long> _submissionCommentCount = 
-                                        new HashMap<String, Long>();
+    private LatencyHistogram _listingLatency = new LatencyHistogram();
+    private LatencyHistogram _commentLatency = new LatencyHistogram();
+    private LatencyHistogram _dispatchLatency = new LatencyHistogram();
+    private LongAdder _submissionsSkipped = new LongAdder();
+    private LongAdder _matches = new LongAdder();
+    private LongAdder _rateLimitSleeps = new LongAdder();
+    private LongAdder _rateLimitSeconds = new LongAdder();
+    private LongAdder _subredditsCrawled = new LongAdder();
+    private LongAdder _passSubreddits = new LongAdder();
+    private ConcurrentHashMap<CrawlerMatchCriteria, LongAdder> 
+            _criteriaMatches = 
+                    new ConcurrentHashMap<CrawlerMatchCriteria, LongAdder>();
+    private volatile long _passStartNanos = 0;
+    private volatile long _passEndNanos = 0;
+    private volatile long _lastPassMillis = 0;
+
+    //
+    // Replies nested deeper than this are not checked.
+    //
+    private int _maxCommentDepth = CommentTree.DEFAULT_MAX_DEPTH;
+
+    //
+    // Submissions already handled in the current pass, over all 
+    // listing types and subreddits, and how many times one turned up
+    // again and was skipped.
+    //
+    private LongHashSet _passSubmissions = new LongHashSet();
+    private LongAdder _duplicatesAvoided = new LongAdder();
+    private LongAdder _passDuplicatesAvoided = new LongAdder();
+
+    //
+    // Immutable snapshot of the listeners and criteria, read by the
+    // crawl without locking. Rebuilt and replaced whenever they change.
+    //
+    private volatile CrawlerRegistry _registry = CrawlerRegistry.EMPTY;
 
     //
     // An object used when synchronizing modification to the listeners
@@ -35,9 +109,29 @@ public class Crawler implements Runnable {
     private Object _lock = new Object();
 
     //
-    // A list of subs to crawl 
+    // A list of subs to crawl. For a rolling crawler the current window
+    // of the catalog.
+    //
+    private volatile List<String> _subs;
+
+    //
+    // Rolling crawl of a subreddit catalog. Each pass crawls the next
+    // window of _catalogWindow subreddits, more if needed to crawl the
+    // whole catalog within _catalogPeriod seconds (0 for no period).
+    // Null if the crawler crawls a fixed list.
     //
-    private List<String> _subs;
+    private SubredditCatalog _catalog = null;
+    private int _catalogWindow;
+    private int _catalogPeriod;
+
+    //
+    // Time between the starts of the last two passes, and when the
+    // last one started.
+    //
+    private long _passInterval = 0;
+    private long _lastPassStart = 0;
+
+    private volatile long _lastCycleMillis = 0;
 
     //
     // Submissions types to check when crawling.
@@ -61,7 +155,107 @@ public class Crawler implements Runnable {
 
     private boolean _shuffle = false;
 
-    private boolean _shutdown = false;
+    private volatile boolean _shutdown = false;
+
+    //
+    // Step timing, guarded by _timing. The next step due on the timer,
+    // when it is due, whether a step is running and on which thread,
+    // and whether wake() was called while it ran.
+    //
+    // _nextStep and _running are written under _timing but volatile,
+    // so status reads never wait on it. _nextStep is the time the next
+    // step is due, 0 if none is scheduled and -1 once stopped.
+    //
+    private Object _timing = new Object();
+    private ScheduledExecutorService _timer = null;
+    private Executor _pool = null;
+    private ScheduledFuture<?> _next = null;
+    private volatile long _nextStep = 0;
+    private volatile boolean _running = false;
+    private Thread _stepThread = null;
+    private boolean _wake = false;
+
+    //
+    // Released once shut down and no step is running.
+    //
+    private CountDownLatch _stopped = new CountDownLatch(1);
+
+    //
+    // Visits made in the current round of the adaptive schedule.
+    //
+    private int _round = 0;
+
+    //
+    // Number of subreddit/listing type units crawled concurrently
+    // during a pass. A value of 1 crawls sequentially in the step itself.
+    //
+    private int _parallelism = 1;
+
+    //
+    // Workers of parallel passes, created by the first one and kept for
+    // the next. Their threads exit when idle, so a crawler waiting for
+    // its next pass still holds none. Guarded by _lock.
+    //
+    private ThreadPoolExecutor _workers = null;
+
+    private static final int WORKER_KEEP_ALIVE = 60;
+
+    //
+    // Number of subreddits combined into one a+b+c listing request
+    // during a pass, and how many pages of a combined listing may
+    // be fetched. A width of 1 fetches each subreddit on its own.
+    //
+    private int _batchWidth = 1;
+    private int _batchMaxPages = DEFAULT_BATCH_MAX_PAGES;
+
+    public static final int DEFAULT_BATCH_MAX_PAGES = 4;
+
+    //
+    // Reddit returns at most this many things per listing request.
+    //
+    private static final int MAX_LISTING_LIMIT = 100;
+
+    //
+    // NEW listings are fetched from the newest submission seen last 
+    // time. Pages fetched per listing while pages come back full of new
+    // submissions, and the page size of each listing, which grows and
+    // shrinks with the number of new submissions.
+    //
+    private int _cursorMaxPages = DEFAULT_CURSOR_MAX_PAGES;
+    private Map<String, Cursor> _cursors = 
+                                new ConcurrentHashMap<String, Cursor>();
+
+    public static final int DEFAULT_CURSOR_MAX_PAGES = 5;
+
+    //
+    // Consecutive empty results from a cursor after which the head of
+    // the listing is fetched instead, in case the cursor's submission
+    // was removed from the listing.
+    //
+    private static final int CURSOR_EMPTY_RESET = 3;
+
+    private static class Cursor {
+        int limit;
+        int empty = 0;
+
+        Cursor(int limit) {
+            this.limit = limit;
+        }
+    }
+
+    //
+    // Adaptive schedule, when subreddits are visited as they become 
+    // due rather than all once per pass. Null for passes.
+    //
+    private CrawlScheduler _scheduler = null;
+
+    //
+    // Activity seen and requests made while crawling a subreddit.
+    //
+    private static class Visit {
+        long activity = 0;
+        int requests = 0;
+    }
 
 
     /**
@@ -89,6 +283,8 @@ public class Crawler implements Runnable {
         _listingTypes = listingTypes;
         _limit = limit;
         _sleepTime = sleepTime;
+
+        _state = new CrawlerState(name, _submissionCommentCount);
     }
 
     public String getName() { return _name; }
@@ -103,6 +299,46 @@ public class Crawler implements Runnable {
     public void addListener(CrawlerListener listener) {
         synchronized(_lock) {
             _listeners.add(listener);
+            publish();
+        }
+    }
+
+    /**
+     * Add a listener which receives notifications from this crawler
+     * asynchronously, through a bounded mailbox drained by its own 
+     * thread. The crawl does not wait for the listener to handle events.
+     *
+     * @param listener  The listener to add.
+     * @param policy    What to do when the mailbox is full. 
+     *                  ListenerMailbox.BLOCK, DROP_OLDEST or COALESCE.
+     * @param capacity  The maximum number of queued events.
+     *
+     */
+    public void addListener(CrawlerListener listener, 
+                            int policy, 
+                            int capacity) {
+        synchronized(_lock) {
+            if(!_mailboxes.containsKey(listener)) {
+                _mailboxes.put(listener, new ListenerMailbox(
+                                    listener, 
+                                    capacity, 
+                                    policy,
+                                    _name + "-" + listenerName(listener)));
+            }
+            _listeners.add(listener);
+            publish();
+        }
+    }
+
+    /**
+     *
+     * Get the mailboxes of listeners added asynchronously, for their
+     * queue depth and handler latency metrics.
+     *
+     */
+    public List<ListenerMailbox> getMailboxes() {
+        synchronized(_lock) {
+            return new ArrayList<ListenerMailbox>(_mailboxes.values());
         }
     }
 
@@ -117,6 +353,13 @@ public class Crawler implements Runnable {
     public void removeListener(CrawlerListener listener) {
         synchronized(_lock) {
             _listeners.remove(listener);
+            if(!_listeners.contains(listener)) {
+                ListenerMailbox mailbox = _mailboxes.remove(listener);
+                if(mailbox != null) {
+                    mailbox.close();
+                }
+            }
+            publish();
         }
     }
 
@@ -129,6 +372,7 @@ public class Crawler implements Runnable {
     public void addMatchCriteria(CrawlerMatchCriteria criteria) {
         synchronized(_lock) {
             _criteria.add(criteria);
+            publish();
         }
     }
 
@@ -138,6 +382,9 @@ public class Crawler implements Runnable {
      * searched subreddits.
      */
     public boolean containsSubreddit(String s) {
+        if(_catalog != null) {
+            return _catalog.contains(s);
+        }
         synchronized(_lock) {
             for(String sub: _subs) {
                 if(sub.equals(s)) {
@@ -156,7 +403,136 @@ public class Crawler implements Runnable {
     public void removeMatchCriteria(CrawlerMatchCriteria criteria) {
         synchronized(_lock) {
             _criteria.remove(criteria);
+            if(!_criteria.contains(criteria)) {
+                _criteriaMatches.remove(criteria);
+            }
+            publish();
+        }
+    }
+
+    /**
+     *
+     * Remove the listeners and match criteria whose classes were 
+     * loaded by a class loader, e.g. of a bot being unloaded, so the 
+     * crawler does not keep the loader reachable.
+     *
+     * @return The number of listeners and criteria removed.
+     *
+     */
+    public int removeLoadedBy(ClassLoader loader) {
+        int removed = 0;
+        synchronized(_lock) {
+            for(CrawlerMatchCriteria criteria: 
+                        new ArrayList<CrawlerMatchCriteria>(_criteria)) {
+                CrawlerListener listener = criteria.getCrawlerListener();
+                if( criteria.getClass().getClassLoader() == loader ||
+                    (listener != null &&
+                     listener.getClass().getClassLoader() == loader) ) {
+                    removeMatchCriteria(criteria);
+                    removed++;
+                }
+            }
+            for(CrawlerListener listener: 
+                        new ArrayList<CrawlerListener>(_listeners)) {
+                if(listener.getClass().getClassLoader() == loader) {
+                    removeListener(listener);
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     *
+     * Crawl a catalog of subreddits a window at a time instead of a
+     * fixed list. Each pass crawls the window after the last one, 
+     * wrapping around at the end of the catalog. The position survives
+     * restarts in the crawler state. Call before the crawler is started.
+     *
+     * @param catalog   The subreddits.
+     * @param window    Subreddits crawled per pass.
+     * @param period    Seconds within which every subreddit must be 
+     *                  crawled, or 0. Passes crawl more than window
+     *                  subreddits when needed to meet it.
+     *
+     */
+    public void setCatalog(SubredditCatalog catalog, int window, int period) {
+        synchronized(_lock) {
+            _catalog = catalog;
+            _catalogWindow = Math.max(1, window);
+            _catalogPeriod = Math.max(0, period);
+            _subs = catalog.window(
+                        _state.getCatalogCursor() % catalog.size(),
+                        _catalogWindow);
+        }
+    }
+
+    public SubredditCatalog getCatalog() { return _catalog; }
+
+    /**
+     *
+     * Select the catalog window of the next pass. The cursor only moves
+     * when a pass completes, so a pass interrupted by a restart resumes
+     * on the same window.
+     *
+     */
+    private void selectWindow() {
+        long now = System.currentTimeMillis();
+        if(_state.getCatalogCycleStart() == 0) {
+            _state.setCatalogCursor(0, 0, now);
+        }
+
+        int size = _catalog.size();
+        int cursor = _state.getCatalogCursor() % size;
+        int remaining = size - cursor;
+        int window = _catalogWindow;
+
+        if(_catalogPeriod > 0 && _passInterval > 0) {
+            long left = _state.getCatalogCycleStart() + 
+                            _catalogPeriod * 1000L - now;
+            long passes = Math.max(1, left / _passInterval);
+            int needed = (int)((remaining + passes - 1) / passes);
+            if(needed > window) {
+                log("Crawler " + _name + " crawling " + needed + 
+                    " subreddits this pass to cover the catalog within " + 
+                    _catalogPeriod + "s");
+                window = needed;
+            }
+        }
+
+        //
+        // Stop at the end of the catalog, so each cycle crawls every 
+        // subreddit once.
+        //
+        window = Math.min(window, remaining);
+
+        List<String> subs = _catalog.window(cursor, window);
+        synchronized(_lock) {
+            _subs = subs;
+        }
+    }
+
+    /**
+     *
+     * Move the catalog cursor past the window just crawled.
+     *
+     */
+    private void advanceCatalog() {
+        long now = System.currentTimeMillis();
+        int cursor = _state.getCatalogCursor() + _subs.size();
+        int cycle = _state.getCatalogCycle();
+        long cycleStart = _state.getCatalogCycleStart();
+        if(cursor >= _catalog.size()) {
+            cycle++;
+            _lastCycleMillis = now - cycleStart;
+            log("Crawler " + _name + " crawled all " + _catalog.size() + 
+                " subreddits of the catalog, cycle " + cycle + ", in " + 
+                _lastCycleMillis / 1000 + "s");
+            cursor = 0;
+            cycleStart = now;
         }
+        _state.setCatalogCursor(cursor, cycle, cycleStart);
     }
 
     /**
@@ -169,266 +545,1068 @@ public class Crawler implements Runnable {
 
     /**
      *
-     * Perform the crawk.
+     * Specify how many subreddit/listing type units this crawler
+     * crawls concurrently during a pass. 
+     *
+     * @param parallelism   The number of concurrent crawl units. 
+     *                      1 (the default) crawls sequentially.
      *
      */
-    public void run() {
+    public void setParallelism(int parallelism) {
+        _parallelism = Math.max(1, parallelism);
+    }
 
-        log("Crawler " + _name + " running...");
+    public int getParallelism() { return _parallelism; }
 
-        while(true) {
+    /**
+     *
+     * Combine subreddits into a+b+c listing requests during a pass.
+     *
+     * Each combined listing is fetched with room for the limit of every
+     * subreddit in it, up to reddit's maximum, and its submissions are
+     * fanned back out by subreddit, each keeping at most the limit. 
+     * While a page comes back full and a subreddit of the group still 
+     * has fewer than the limit, the next page is fetched, up to the
+     * maximum number of pages, so quiet subreddits crowded out by busy
+     * ones are still covered. The maximum is raised to at least the
+     * pages needed to hold the limit of every subreddit in the group,
+     * and a group cut short by it is logged.
+     *
+     * NEW listings are fetched from a cursor rather than by limit, see
+     * fetchNew(). Does not apply to the adaptive schedule, which visits
+     * subreddits one at a time.
+     *
+     * @param width     Subreddits per request. 1 (the default) fetches
+     *                  each subreddit on its own.
+     * @param maxPages  Maximum pages fetched per combined listing,
+     *                  beyond those needed for width times the limit.
+     *
+     */
+    public void setBatchWidth(int width, int maxPages) {
+        _batchWidth = Math.max(1, width);
+        _batchMaxPages = Math.max(1, maxPages);
+    }
 
-            if(_shutdown) {
-                log("Crawler " + getName() + " shutting down...");
-                return;
-            }
+    public int getBatchWidth() { return _batchWidth; }
 
-            try {
+    /**
+     *
+     * Set the maximum number of pages of new submissions fetched from a
+     * NEW listing per crawl. New submissions beyond that are fetched on
+     * the next crawl.
+     *
+     */
+    public void setCursorMaxPages(int maxPages) {
+        _cursorMaxPages = Math.max(1, maxPages);
+    }
 
-                _user.connect();
+    /**
+     *
+     * Visit subreddits adaptively instead of once per pass.
+     *
+     * Each subreddit is visited again when, from its decayed rate of
+     * new submissions and comments, it is predicted to have changed.
+     * Busy subreddits are visited every few minutes and quiet ones 
+     * rarely. Visits are paced to the request budget and made one at 
+     * a time, so parallelism does not apply. Call before the crawler 
+     * is started.
+     *
+     * @param requestsPerHour   The request budget of this crawler.
+     * @param minInterval       Minimum seconds between visits of a
+     *                          subreddit.
+     * @param maxInterval       Maximum seconds between visits of a
+     *                          subreddit.
+     * @param halfLife          Seconds after which observed activity
+     *                          counts half.
+     *
+     */
+    public void setAdaptiveSchedule(int requestsPerHour,
+                                    int minInterval,
+                                    int maxInterval,
+                                    int halfLife) {
+        synchronized(_lock) {
+            _scheduler = new CrawlScheduler(
+                                    _subs, 
+                                    requestsPerHour, 
+                                    minInterval,
+                                    maxInterval, 
+                                    halfLife);
+        }
+    }
 
-            } catch(IOException ioe) {
-                log("Error cannot connect user for crawl.");
-                sleep(_sleepTime);
-                continue;
-            }
+    /**
+     *
+     * Get the adaptive schedule, or null if this crawler crawls in 
+     * passes.
+     *
+     */
+    public CrawlScheduler getScheduler() { return _scheduler; }
 
-            log("Total subreddits to crawl:   " + _subs.size());
-            
-            if(_shuffle) {
-                //
-                // Random shuffle subreddit list.
-                //
-                Collections.shuffle(
-                                _subs, 
-                                new Random(System.currentTimeMillis()) );
-            }
+    /**
+     *
+     * The most requests per hour a pass of this crawler can make: one 
+     * listing and a comment fetch per listed submission, for each 
+     * subreddit and listing type, every sleep time. A budget for an 
+     * adaptive schedule which adds no requests.
+     *
+     */
+    public int getPassRequestsPerHour() {
+        long requests = (long)_subs.size() * _listingTypes.length * 
+                                                            (1 + _limit);
+        return (int)Math.max(1, requests * 3600 / Math.max(1, _sleepTime));
+    }
 
-            //
-            // Time ourselves.
-            //
-            Date startTime = new Date();
+    /**
+     *
+     * Set the maximum number of submissions whose comment count this
+     * crawler remembers. Call before the crawler is started.
+     *
+     * @param capacity  The number of submissions.
+     *
+     */
+    public void setCommentCountCapacity(int capacity) {
+        CommentCountCache cache = new CommentCountCache(capacity);
+        _state.setCommentCountCache(cache);
+        _submissionCommentCount = cache;
+        _seenComments.setMaxSubmissions(capacity);
+    }
 
-            //
-            // Optimization.
-            // 
-            // Do not crawl if there are no listeners.
-            //
-            if(_listeners.size() == 0) {
-                log("No listeners. Crawler sleeping...");
-                sleep(_sleepTime);
-                continue;
-            }
+    /**
+     *
+     * Set the maximum number of already matched comments this crawler
+     * remembers, of at most as many submissions as it remembers the
+     * comment counts of. Call before the crawler is started.
+     *
+     * @param capacity  The number of comments.
+     *
+     */
+    public void setSeenCommentCapacity(int capacity) {
+        _seenComments = new SeenCommentIndex(
+                            capacity, _submissionCommentCount.getCapacity());
+    }
 
-            List<CrawlerListener> copyListeners = 
-                                    new ArrayList<CrawlerListener>();
-            List<CrawlerMatchCriteria> copyCriteria = 
-                                    new ArrayList<CrawlerMatchCriteria>();
-            copyListeners(copyListeners, copyCriteria);
-            for(CrawlerListener listener: copyListeners) {
-                listener.handleCrawlerEvent(
-                    new CrawlerEvent(CrawlerEvent.CRAWLER_START, this) );
-            }
+    /**
+     *
+     * Set the maximum depth of replies checked. Top level comments are
+     * at depth 0.
+     *
+     */
+    public void setMaxCommentDepth(int depth) {
+        _maxCommentDepth = depth;
+    }
 
-            // 
-            // Find any new matches
-            //
-            for(int i = 0; i < _subs.size(); i++) {
-                    
-                Date currentTime = new Date();
-                String subreddit = _subs.get(i);
+    /**
+     *
+     * The number of comments and submissions matched against criteria.
+     *
+     */
+    public long getEvaluations() { return _evaluations.sum(); }
+
+    /**
+     *
+     * The number of comments and submissions not matched against
+     * criteria, because they already were on an earlier visit.
+     *
+     */
+    public long getEvaluationsSkipped() { return _evaluationsSkipped.sum(); }
+
+    /**
+     *
+     * The number of times a submission turned up again in the same pass,
+     * in another listing type or subreddit, and was not handled twice.
+     *
+     */
+    public long getDuplicatesAvoided() { return _duplicatesAvoided.sum(); }
 
-                log("Crawler start:      " + 
-                            BotKernel.DATE_FORMAT.format(startTime));
-                log("Crawler current:    " + 
-                            BotKernel.DATE_FORMAT.format(currentTime));
-                log("Checking subreddit: " + (i+1) + 
-                            " / " + _subs.size() + 
-                            " (" + subreddit + ")" );
+    public long getPass() { return _state.getPass(); }
 
+    public long getLastPassMillis() { return _lastPassMillis; }
 
-                for(Submissions.ListingType listingType: _listingTypes) {
+    public double getSubredditsPerMinute() {
+        long start = _passStartNanos;
+        if(start == 0) {
+            return 0;
+        }
+        long end = _passEndNanos;
+        if(end - start < 0) {
+            // In a pass.
+            end = System.nanoTime();
+        }
+        double minutes = (end - start) / 60000000000.0;
+        return minutes <= 0 ? 0 : _passSubreddits.sum() / minutes;
+    }
 
-                    try {
-
-                        //
-                        // Go find game requests in the given subreddit
-                        //
-                        doCrawl(subreddit, listingType);
-                 
-                    } catch(RateLimitException rle) {
-
-                        log("Caught RateLimitException: " + 
-                                                rle.getMessage());
-
-                        int sleepSecs = rle.getRetryTime();
-    
-                        log("Crawler sleeping " + sleepSecs + 
-                                " seconds to recover from " +
-                                "rate limit exception...");
-
-                        sleep(sleepSecs);
-            
-                    } catch(IOException ioe) {
-                        ioe.printStackTrace();
-                        log("Crawler exception");
-                    }
-                }
-            }
+    public long getSubredditsCrawled() { return _subredditsCrawled.sum(); }
 
-            copyListeners = new ArrayList<CrawlerListener>();
-            copyCriteria = new ArrayList<CrawlerMatchCriteria>();
-            copyListeners(copyListeners, copyCriteria);
-            for(CrawlerListener listener: copyListeners) {
-                listener.handleCrawlerEvent(
-                    new CrawlerEvent(CrawlerEvent.CRAWLER_COMPLETE, this) );
-            }
+    public long getPassSubreddits() { return _passSubreddits.sum(); }
 
+    public int getSubredditCount() { return _subs.size(); }
 
-            //
-            // Crawler default sleep
-            //                
-            log("Crawler sleeping...");
-            sleep(_sleepTime);
+    public int getCatalogSize() {
+        return _catalog == null ? 0 : _catalog.size();
+    }
 
+    public double getCatalogCoverage() {
+        if(_catalog == null) {
+            return 0;
         }
+        return (double)_state.getCatalogCursor() / _catalog.size();
     }
 
-    public void wake() {
-        _wake = true;
+    public int getCatalogCycles() { return _state.getCatalogCycle(); }
+
+    public long getLastCatalogCycleMillis() { return _lastCycleMillis; }
+
+    public LatencyHistogram.Snapshot getListingLatency() {
+        return _listingLatency.getSnapshot();
     }
 
-    private boolean _wake = false;
+    public LatencyHistogram.Snapshot getCommentLatency() {
+        return _commentLatency.getSnapshot();
+    }
 
-    protected void sleep(int seconds) {
-        try {
-            for(int i = 0; i <  seconds; i++) {
-                if(_wake) {
-                    // Wake up
-                    _wake = false;
-                    return;
-                }
-                if(_shutdown) {
-                    return;
-                }
-                Thread.sleep(1000);
-            }
-        } catch (InterruptedException ie) {
-            throw new RuntimeException(ie);
+    public LatencyHistogram.Snapshot getDispatchLatency() {
+        return _dispatchLatency.getSnapshot();
+    }
+
+    public long getSubmissionsSkipped() { return _submissionsSkipped.sum(); }
+
+    public long getMatches() { return _matches.sum(); }
+
+    public Map<String, Long> getMatchesPerCriteria() {
+        Map<String, Long> ret = new TreeMap<String, Long>();
+        for(Map.Entry<CrawlerMatchCriteria, LongAdder> entry: 
+                                            _criteriaMatches.entrySet()) {
+            CrawlerMatchCriteria criteria = entry.getKey();
+            String name = listenerName(criteria.getCrawlerListener()) + " " +
+                (criteria instanceof KeywordMatchCriteria ?
+                    Arrays.toString(
+                        ((KeywordMatchCriteria)criteria).getKeywords()) :
+                    criteria.getClass().getName()) +
+                " @" + Integer.toHexString(System.identityHashCode(criteria));
+            ret.put(name, entry.getValue().sum());
         }
+        return ret;
     }
 
+    public long getRateLimitSleeps() { return _rateLimitSleeps.sum(); }
+
+    public long getRateLimitSeconds() { return _rateLimitSeconds.sum(); }
+
     /**
      *
-     * Call to indicate that this crawler should shut down.
+     * Get the submission comment count cache, for its counters.
      *
      */
-    public void shutdown() {
-        _shutdown = true;
+    public CommentCountCache getCommentCountCache() {
+        return _submissionCommentCount;
+    }
+
+    /**
+     *
+     * Start crawling. The first step runs at once.
+     *
+     * @param timer Schedules the crawler's steps.
+     * @param pool  Runs them.
+     *
+     */
+    public void start(ScheduledExecutorService timer, Executor pool) {
+        synchronized(_timing) {
+            if(_timer != null) {
+                log("Crawler " + _name + " already started.");
+                return;
+            }
+            _timer = timer;
+            _pool = pool;
+
+            log("Crawler " + _name + " running...");
+            if(_scheduler != null) {
+                log("Crawler " + _name + " scheduling adaptively: " + 
+                                                                _scheduler);
+            }
+
+            schedule(0);
+        }
+    }
+
+    /**
+     *
+     * Schedule the next step. Called with _timing held.
+     *
+     */
+    private void schedule(long delay) {
+        if(_shutdown) {
+            stopped();
+            return;
+        }
+        _nextStep = System.currentTimeMillis() + delay;
+        _next = _timer.schedule(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * Hand a step which is due from the timer to the pool.
+     *
+     */
+    private void dispatch() {
+        synchronized(_timing) {
+            if(_shutdown || _running) {
+                return;
+            }
+            _next = null;
+            _nextStep = 0;
+            _running = true;
+        }
+        try {
+            _pool.execute(new Runnable() {
+                public void run() {
+                    step();
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            log("Crawler " + _name + " step rejected, kernel shut down.");
+            synchronized(_timing) {
+                _running = false;
+                stopped();
+            }
+        }
+    }
+
+    /**
+     *
+     * Run one step, and schedule the next.
+     *
+     */
+    private void step() {
+
+        //
+        // Pool threads take the crawler's name while they crawl, so 
+        // log lines and thread dumps still tell crawlers apart.
+        //
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        thread.setName(_name);
+        synchronized(_timing) {
+            _stepThread = thread;
+        }
+
+        long delay = _sleepTime * 1000L;
+        try {
+            if(!_shutdown) {
+                delay = _scheduler != null ? visit() : pass();
+            }
+        } catch(RuntimeException re) {
+            re.printStackTrace();
+            log("Crawler exception " + re);
+        } finally {
+            thread.setName(threadName);
+            synchronized(_timing) {
+                _stepThread = null;
+                _running = false;
+                if(_wake) {
+                    _wake = false;
+                    delay = 0;
+                }
+                schedule(delay);
+            }
+        }
+    }
+
+    /**
+     *
+     * Crawl a whole pass.
+     *
+     * @return Milliseconds until the next pass.
+     *
+     */
+    private long pass() {
+
+        try {
+
+            SessionManager.getSessionManager().connect(_user);
+
+        } catch(IOException ioe) {
+            log("Error cannot connect user for crawl.");
+            return _sleepTime * 1000L;
+        }
+
+        if(_catalog != null) {
+            selectWindow();
+        }
+
+        log("Total subreddits to crawl:   " + _subs.size());
+        
+        if(_shuffle) {
+            //
+            // Random shuffle subreddit list.
+            //
+            List<String> subs = new ArrayList<String>(_subs);
+            Collections.shuffle(
+                            subs, 
+                            new Random(System.currentTimeMillis()) );
+            _subs = subs;
+        }
+
+        //
+        // Time ourselves.
+        //
+        Date startTime = new Date();
+
+        //
+        // Optimization.
+        // 
+        // Do not crawl if there are no listeners.
+        //
+        if(_registry.listeners.length == 0) {
+            log("No listeners. Crawler sleeping...");
+            return _sleepTime * 1000L;
+        }
+
+        for(CrawlerListener listener: _registry.listeners) {
+            listener.handleCrawlerEvent(
+                new CrawlerEvent(CrawlerEvent.CRAWLER_START, this) );
+        }
+
+        //
+        // Start a new pass, or resume one the kernel was 
+        // stopped in the middle of.
+        //
+        _state.startPass();
+
+        long now = System.currentTimeMillis();
+        if(_lastPassStart > 0) {
+            _passInterval = now - _lastPassStart;
+        }
+        _lastPassStart = now;
+
+        synchronized(_passSubmissions) {
+            _passSubmissions.clear();
+        }
+        _passDuplicatesAvoided.reset();
+        startPassMetrics();
+
+        // 
+        // Find any new matches
+        //
+        List<String> units = getPassUnits();
+        if(_parallelism > 1) {
+            parallelCrawl(startTime, units);
+        } else {
+            for(int i = 0; i < units.size(); i++) {
+                if(_shutdown) {
+                    break;
+                }
+                String subreddit = units.get(i);
+                logProgress(startTime, i, units.size(), subreddit);
+                for(Submissions.ListingType listingType: _listingTypes) {
+                    crawlUnit(subreddit, listingType);
+                }
+            }
+        }
+
+        if(!_shutdown) {
+            if(_catalog != null) {
+                advanceCatalog();
+            }
+            _state.completePass();
+        }
+        endPassMetrics();
+
+        for(CrawlerListener listener: _registry.listeners) {
+            listener.handleCrawlerEvent(
+                new CrawlerEvent(CrawlerEvent.CRAWLER_COMPLETE, this) );
+        }
+
+
+        logStats();
+
+        //
+        // Crawler default sleep
+        //                
+        log("Crawler sleeping...");
+        return _sleepTime * 1000L;
+    }
+
+    /**
+     *
+     * Visit whichever subreddit is most overdue, if one is due.
+     *
+     * Listeners get CRAWLER_START and CRAWLER_COMPLETE around each 
+     * round of as many visits as there are subreddits.
+     *
+     * @return Milliseconds until the next visit.
+     *
+     */
+    private long visit() {
+
+        long delay = _scheduler.getDelay(System.currentTimeMillis());
+        if(delay > 0) {
+            return Math.min(_sleepTime * 1000L, delay);
+        }
+
+        if(_registry.listeners.length == 0) {
+            log("No listeners. Crawler sleeping...");
+            return _sleepTime * 1000L;
+        }
+
+        try {
+            SessionManager.getSessionManager().connect(_user);
+        } catch(IOException ioe) {
+            log("Error cannot connect user for crawl.");
+            return _sleepTime * 1000L;
+        }
+
+        String subreddit = _scheduler.next(System.currentTimeMillis());
+        if(subreddit == null) {
+            return 0;
+        }
+
+        if(_round == 0) {
+            startPassMetrics();
+            for(CrawlerListener listener: _registry.listeners) {
+                listener.handleCrawlerEvent(
+                    new CrawlerEvent(CrawlerEvent.CRAWLER_START, this) );
+            }
+        }
+
+        //
+        // A visit is what a pass is in miniature: a submission
+        // listed by several listing types is handled once.
+        //
+        synchronized(_passSubmissions) {
+            _passSubmissions.clear();
+        }
+
+        Visit visit = new Visit();
+        boolean ok = true;
+        for(Submissions.ListingType listingType: _listingTypes) {
+            if(_shutdown) {
+                break;
+            }
+            ok &= fetchUnit(subreddit, listingType, visit);
+        }
+
+        _subredditsCrawled.increment();
+        _passSubreddits.increment();
+
+        long now = System.currentTimeMillis();
+        if(ok && !_shutdown) {
+            _scheduler.visited(
+                        subreddit, visit.activity, visit.requests, now);
+        } else {
+            _scheduler.failed(subreddit, visit.requests, now);
+        }
+
+        if(++_round >= _subs.size()) {
+            _round = 0;
+            endPassMetrics();
+            for(CrawlerListener listener: _registry.listeners) {
+                listener.handleCrawlerEvent(
+                    new CrawlerEvent(CrawlerEvent.CRAWLER_COMPLETE, this));
+            }
+            logStats();
+        }
+
+        return 0;
+    }
+
+    private void startPassMetrics() {
+        _passSubreddits.reset();
+        _passStartNanos = System.nanoTime();
+    }
+
+    private void endPassMetrics() {
+        _passEndNanos = System.nanoTime();
+        _lastPassMillis = (_passEndNanos - _passStartNanos) / 1000000;
+    }
+
+    private void logStats() {
+        log("Comment count cache: " + _submissionCommentCount);
+        log("Seen comments:       " + _seenComments);
+        log("Evaluations:         " + _evaluations.sum() + 
+            " skipped " + _evaluationsSkipped.sum());
+        log("Duplicates avoided:  " + _passDuplicatesAvoided.sum() + 
+            " this pass, " + _duplicatesAvoided.sum() + " total");
+        for(ListenerMailbox mailbox: getMailboxes()) {
+            log("Mailbox:             " + mailbox);
+        }
+        log("Listing latency:     " + _listingLatency);
+        log("Comment latency:     " + _commentLatency);
+        log("Dispatch latency:    " + _dispatchLatency);
+        if(_scheduler != null) {
+            log("Schedule:            " + _scheduler);
+        }
+        if(_catalog != null) {
+            log(String.format("Catalog:             %d / %d (%.1f%%) " +
+                              "of cycle %d, last cycle %ds",
+                              _state.getCatalogCursor(),
+                              _catalog.size(),
+                              100 * getCatalogCoverage(),
+                              _state.getCatalogCycle() + 1,
+                              _lastCycleMillis / 1000));
+        }
+        log("Response cache:      " + ResponseCache.getResponseCache());
+    }
+
+    /**
+     *
+     * Crawl every subreddit/listing type unit of this pass on a 
+     * bounded pool of worker threads, and wait for all of them to 
+     * finish, so CRAWLER_COMPLETE still follows the whole pass.
+     *
+     */
+    private void parallelCrawl(final Date startTime, 
+                               final List<String> subs) {
+
+        log("Crawler " + _name + " crawling with parallelism " + 
+                                                        _parallelism);
+
+        ExecutorService executor = getWorkers();
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for(int i = 0; i < subs.size(); i++) {
+            final int index = i;
+            final String subreddit = subs.get(i);
+            for(final Submissions.ListingType listingType: _listingTypes) {
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        if(_shutdown) {
+                            return;
+                        }
+                        if(listingType == _listingTypes[0]) {
+                            logProgress(
+                                startTime, index, subs.size(), subreddit);
+                        }
+                        crawlUnit(subreddit, listingType);
+                    }
+                }));
+            }
+        }
+
+        //
+        // Wait for the whole pass to finish.
+        //
+        for(Future<?> future: futures) {
+            try {
+                future.get();
+            } catch(ExecutionException ee) {
+                ee.getCause().printStackTrace();
+                log("Crawler unit exception " + ee.getCause());
+            } catch(InterruptedException ie) {
+                for(Future<?> f: futures) {
+                    f.cancel(true);
+                }
+                throw new RuntimeException(ie);
+            }
+        }
+    }
+
+    /**
+     *
+     * Get the worker pool, sized to the current parallelism.
+     *
+     */
+    private ThreadPoolExecutor getWorkers() {
+        synchronized(_lock) {
+            if(_workers == null) {
+                _workers = new ThreadPoolExecutor(
+                            _parallelism, _parallelism,
+                            WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(),
+                            BotKernel.getBotKernel().getThreadFactory(_name));
+                _workers.allowCoreThreadTimeOut(true);
+            } else if(_workers.getMaximumPoolSize() < _parallelism) {
+                _workers.setMaximumPoolSize(_parallelism);
+                _workers.setCorePoolSize(_parallelism);
+            } else if(_workers.getMaximumPoolSize() > _parallelism) {
+                _workers.setCorePoolSize(_parallelism);
+                _workers.setMaximumPoolSize(_parallelism);
+            }
+            return _workers;
+        }
+    }
+
+    /**
+     *
+     * Get what a pass crawls, each subreddit or, when batching, each 
+     * a+b+c group of subreddits.
+     *
+     */
+    private List<String> getPassUnits() {
+        List<String> subs = new ArrayList<String>(_subs);
+        if(_batchWidth <= 1) {
+            return subs;
+        }
+        List<String> units = new ArrayList<String>();
+        for(int i = 0; i < subs.size(); i += _batchWidth) {
+            StringBuffer sb = new StringBuffer();
+            for(int j = i; j < i + _batchWidth && j < subs.size(); j++) {
+                if(sb.length() > 0) {
+                    sb.append('+');
+                }
+                sb.append(subs.get(j));
+            }
+            units.add(sb.toString());
+        }
+        return units;
+    }
+
+    private void logProgress(   Date startTime, 
+                                int i, 
+                                int total, 
+                                String subreddit) {
+        //
+        // Dates are formatted by the log writer, not here in parallel 
+        // crawl threads.
+        //
+        log(KernelLogger.INFO, "Crawler start:      %tF %<tT", startTime);
+        log(KernelLogger.INFO, "Crawler current:    %tF %<tT", new Date());
+        log(KernelLogger.INFO, "Checking subreddit: %d / %d (%s)", 
+                    i + 1, total, subreddit);
+    }
+
+    /**
+     *
+     * Crawl a single subreddit for a single listing type, recovering
+     * from rate limit and IO errors.
+     *
+     */
+    private void crawlUnit( String subreddit, 
+                            Submissions.ListingType listingType ) {
+
+        if(_state.isDone(subreddit, listingType)) {
+            // Already crawled before the kernel restarted.
+            return;
+        }
+
+        if(fetchUnit(subreddit, listingType, new Visit()) && !_shutdown) {
+            _state.unitDone(subreddit, listingType);
+        }
+
+        //
+        // Count subreddits once, on their first listing type.
+        //
+        if(listingType == _listingTypes[0]) {
+            int subs = subreddit.split("\\+").length;
+            _subredditsCrawled.add(subs);
+            _passSubreddits.add(subs);
+        }
+    }
+
+    /**
+     *
+     * Crawl a single subreddit for a single listing type, recovering
+     * from rate limit and IO errors.
+     *
+     * @param visit Activity seen and requests made are added to this.
+     *
+     * @return false if the crawl failed.
+     *
+     */
+    private boolean fetchUnit(  String subreddit, 
+                                Submissions.ListingType listingType,
+                                Visit visit ) {
+        try {
+
+            //
+            // Go find game requests in the given subreddit
+            //
+            doCrawl(subreddit, listingType, visit);
+     
+        } catch(RateLimitException rle) {
+
+            log("Caught RateLimitException: " + 
+                                    rle.getMessage());
+
+            int sleepSecs = rle.getRetryTime();
+
+            log("Holding requests for " + _user.getUsername() + " " +
+                    sleepSecs + " seconds to recover from " +
+                    "rate limit exception...");
+
+            //
+            // Hold every crawler and bot using this account, not just
+            // this crawl unit.
+            //
+            _rateLimitSleeps.increment();
+            _rateLimitSeconds.add(sleepSecs);
+            RequestBudget.getRequestBudget().penalize(_user, sleepSecs);
+            return false;
+
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+            log("Crawler exception");
+            if(SessionManager.isAuthError(ioe)) {
+                //
+                // Log in again now, once for all units running, so the
+                // rest of the pass does not fail too.
+                //
+                SessionManager.getSessionManager().invalidate(_user);
+                try {
+                    SessionManager.getSessionManager().connect(_user);
+                } catch(IOException reconnect) {
+                    log("Error cannot reconnect user for crawl.");
+                }
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     *
+     * Run the next step now rather than when it is due. If a step is 
+     * running, the next one starts as soon as it ends.
+     *
+     */
+    public void wake() {
+        synchronized(_timing) {
+            if(_running) {
+                _wake = true;
+            } else if(_next != null && _next.cancel(false)) {
+                schedule(0);
+            }
+        }
+    }
+
+    /**
+     *
+     * Call to indicate that this crawler should shut down. A waiting 
+     * crawler stops at once, a running step at the next subreddit.
+     * Listener mailboxes are closed, discarding undelivered events.
+     *
+     */
+    public void shutdown() {
+        synchronized(_timing) {
+            _shutdown = true;
+            if(_next != null) {
+                _next.cancel(false);
+                _next = null;
+                _nextStep = 0;
+            }
+            if(!_running) {
+                stopped();
+            }
+        }
+
+        //
+        // Also releases a step waiting for room in a BLOCK mailbox.
+        //
+        synchronized(_lock) {
+            for(ListenerMailbox mailbox: _mailboxes.values()) {
+                mailbox.close();
+            }
+        }
+    }
+
+    /**
+     *
+     * Wait until the crawler has shut down and no step is running.
+     * Returns at once if called from the crawler's own step, e.g. by a
+     * listener removing the crawler.
+     *
+     * @return false if called from the crawler's own step.
+     *
+     */
+    public boolean awaitShutdown() throws InterruptedException {
+        synchronized(_timing) {
+            if(_stepThread == Thread.currentThread()) {
+                return false;
+            }
+        }
+        _stopped.await();
+        return true;
+    }
+
+    /**
+     *
+     * Whether a step is running. Does not take the timing lock.
+     *
+     */
+    public boolean isCrawling() {
+        return _running;
+    }
+
+    /**
+     *
+     * Milliseconds until the next step is due, 0 if one is running or
+     * due and -1 once stopped. Does not take the timing lock.
+     *
+     */
+    public long getNextStepMillis() {
+        long nextStep = _nextStep;
+        if(nextStep < 0) {
+            return -1;
+        }
+        if(_running || nextStep == 0) {
+            return 0;
+        }
+        return Math.max(0, nextStep - System.currentTimeMillis());
+    }
+
+    //
+    // Called with _timing held, once shut down and no step is running.
+    //
+    private void stopped() {
+        if(_stopped.getCount() > 0) {
+            log("Crawler " + getName() + " shutting down...");
+            _nextStep = -1;
+            synchronized(_lock) {
+                if(_workers != null) {
+                    _workers.shutdown();
+                }
+            }
+            _stopped.countDown();
+        }
     }
 
     /**
      * Check list of subreddits for new game requests and
      * return a list of all game requesting comments found.
      */
-    private void doCrawl(   String subreddit,
-                            Submissions.ListingType listingType) 
+    private void doCrawl(   final String subreddit,
+                            final Submissions.ListingType listingType,
+                            final Visit visit ) 
                                                     throws IOException {
         List<Thing> ret = new ArrayList<Thing>();
 
-        log("Checking for crawl matches in subreddit: " + subreddit);
-        log("Current user: \n" + _user);
-
-        List<Submission> submissions = 
-                                Submissions.getSubmissions(
-                                                _user,
-                                                subreddit,
-                                                listingType, 
-                                                _limit,
-                                                (String)null,
-                                                (String)null );
+        log(KernelLogger.DEBUG, 
+            "Checking for crawl matches in subreddit: %s", subreddit);
+        log(KernelLogger.DEBUG, "Current user: \n%s", _user);
+
+        List<Submission> submissions;
+        if(listingType == Submissions.ListingType.NEW) {
+            submissions = fetchNew(subreddit, visit);
+        } else if(subreddit.indexOf('+') != -1) {
+            submissions = fetchBatch(subreddit, listingType, visit);
+        } else {
+            submissions = fetchListing(
+                            subreddit, listingType, _limit, null, null, visit);
+            if(submissions.size() > 0) {
+                _state.setPosition(
+                    subreddit, listingType, submissions.get(0).getName());
+            }
+        }
 
         // log("Submissions: " + submissions.size());
 
-        for(Submission submission: submissions) {
+        for(final Submission submission: submissions) {
 
             // log("Checking for crawl matches in submission: " + 
             //    submission.getTitle() +
             //    " (" + submission.getName() + ")" +
             //    " (" + submission.getSubreddit() + ")" );
 
+            long key = Utils.fullnameToLong(submission.getName());
+
+            //
+            // Handle each submission once per pass, however many 
+            // listings or subreddits it turns up in.
+            //
+            if(key != -1 && !firstInPass(key)) {
+                continue;
+            }
+
             //
             // Optimization
             //
-            // Cache the number of comments in the submission and only
-            // check the submission if the number has changed since it
-            // was cached.
+            // Only check the submission if its number of comments has
+            // changed since it was last checked. The new number is 
+            // cached once the check succeeded, below.
             //
-            Long numComments = 
-                        _submissionCommentCount.get(submission.getName());
-            if(numComments == null) {
-                long l = submission.getNumComments();
-                numComments = new Long(l);
-                _submissionCommentCount.put(submission.getName(), numComments);
-            } else {
+            if(key != -1) {
+                long numComments = submission.getNumComments();
+                long previous = _submissionCommentCount.get(key);
+
                 //
-                // See if we need to skip this.
+                // Activity the adaptive schedule predicts from. A new
+                // submission, or its new comments.
                 //
-                if(numComments.longValue() == submission.getNumComments()) {
+                if(previous == CommentCountCache.MISSING) {
+                    visit.activity++;
+                } else if(numComments > previous) {
+                    visit.activity += numComments - previous;
+                }
+
+                if(previous == numComments) {
+                    _submissionsSkipped.increment();
                     // No new comments. Skip this.
                     // log("No new comments. Skipping " + submission.getName());
                     continue;
                 }
-                _submissionCommentCount.put(
-                                    submission.getName(), 
-                                    new Long(submission.getNumComments()) );
             }
 
-            log("Checking for crawl matches in submission: " + 
-                submission.getTitle() +
-                " (" + submission.getName() + " in " +
-                "/r/" + submission.getSubreddit() + ")");
+            log(KernelLogger.DEBUG, 
+                "Checking for crawl matches in submission: %s (%s in /r/%s)",
+                submission.getTitle(),
+                submission.getName(),
+                submission.getSubreddit());
 
             //
             // Check the submission itself to see if we have a match
             //
 
-            List<CrawlerListener> copyListeners = 
-                                    new ArrayList<CrawlerListener>();
-            List<CrawlerMatchCriteria> copyCriteria = 
-                                    new ArrayList<CrawlerMatchCriteria>();
-            copyListeners(copyListeners, copyCriteria);
-
             //
-            // Now do the matches against the copies. Listeners can
-            // remove themselves when called if they like.
+            // Comments matched on earlier visits of this submission, 
+            // and the submission itself if it was.
             //
-            for(CrawlerMatchCriteria criteria: copyCriteria) {
-                CrawlerListener listener = criteria.getCrawlerListener();
-                if( copyListeners.contains(listener) &&
-                    criteria.match(submission)  ) {
- 
-                    //
-                    //
-                    // log("Found match in submission " + submission.getName());
+            LongHashSet seen = null;
+            if(key != -1) {
+                seen = _seenComments.get(key);
+            }
 
-                    listener.handleCrawlerEvent(
-                                new CrawlerEvent(   CrawlerEvent.CRAWLER_MATCH, 
-                                                    submission, 
-                                                    criteria,
-                                                    this )      );
-                }
+            if(!isNew(seen, submission)) {
+                _evaluationsSkipped.increment();
+            } else {
+                _evaluations.increment();
+
+                matchThing(submission);
             }
 
             //
             // Check the replies to the submission
             //
-            List<Comment> comments = Comments.getComments(
-                                                        _user,
-                                                        submission );
-            log("Comments: " + comments.size());
 
-            recursiveCommentCheck(comments);
+            List<Comment> comments = 
+                ResponseCache.getResponseCache().getComments(
+                    _user,
+                    submission,
+                    new ResponseCache.Loader<List<Comment>>() {
+                        public List<Comment> load() throws IOException {
+                            RequestBudget.getRequestBudget().acquire(
+                                        _user, RequestBudget.CRAWL);
+                            visit.requests++;
+                            long start = System.nanoTime();
+                            try {
+                                return Comments.getComments(
+                                                    _user,
+                                                    submission );
+                            } finally {
+                                _commentLatency.record(
+                                            System.nanoTime() - start);
+                            }
+                        }
+                    });
+            log(KernelLogger.DEBUG, "Comments: %d", comments.size());
+
+            commentTreeCheck(comments, seen);
+
+            if(key != -1) {
+                _seenComments.update(key, seen);
+
+                //
+                // Only now cache and persist the count, so a submission
+                // whose comments failed to load, or a kernel killed 
+                // while checking them, crawls the submission again.
+                //
+                _state.recordCount(key, submission.getNumComments());
+            }
 
         }
 
@@ -436,82 +1614,424 @@ public class Crawler implements Runnable {
 
     /**
      *
-     * Recursively check comments for game requests.
+     * Fetch one page of a listing. Other crawlers may have just fetched
+     * the same page.
+     *
+     * @param before    The fullname to list the page newer than, or null.
+     * @param after     The fullname to list the page older than, or null.
+     *
      */
-    private void recursiveCommentCheck( List<Comment> comments ) 
-                                            throws IOException {
-        if(comments == null) {
-            return;
+    private List<Submission> fetchListing(
+                                    final String subreddit,
+                                    final Submissions.ListingType listingType,
+                                    final int limit,
+                                    final String before,
+                                    final String after,
+                                    final Visit visit ) throws IOException {
+        List<Submission> submissions =
+            ResponseCache.getResponseCache().getSubmissions(
+                _user,
+                subreddit,
+                listingType,
+                limit,
+                before,
+                after,
+                new ResponseCache.Loader<List<Submission>>() {
+                    public List<Submission> load() throws IOException {
+                        RequestBudget.getRequestBudget().acquire(
+                                            _user, RequestBudget.CRAWL);
+                        visit.requests++;
+                        long start = System.nanoTime();
+                        try {
+                            return Submissions.getSubmissions(
+                                                _user,
+                                                subreddit,
+                                                listingType, 
+                                                limit,
+                                                before,
+                                                after );
+                        } finally {
+                            _listingLatency.record(System.nanoTime() - start);
+                        }
+                    }
+                });
+        if(submissions == null) {
+            return new ArrayList<Submission>();
         }
+        return submissions;
+    }
+
+    /**
+     *
+     * Fetch the submissions of a NEW listing, of one subreddit or an 
+     * a+b+c group, newer than the newest one seen last time.
+     *
+     * Fullnames grow with time across reddit, so for a group the newest
+     * submission seen in any of its subreddits is the cursor. Pages are
+     * fetched towards newer submissions while they come back full, up to
+     * the maximum number of pages. Anything newer is fetched next time,
+     * so no submission is missed however busy the listing.
+     *
+     * Without a cursor, or after the cursor keeps giving nothing, the 
+     * head of the listing is fetched instead, as without a cursor.
+     *
+     */
+    private List<Submission> fetchNew(  String subreddit, 
+                                        Visit visit ) throws IOException {
 
-        for(Comment comment: comments) {
+        Submissions.ListingType listingType = Submissions.ListingType.NEW;
 
-            //
-            // Check the comment to see if we have a match
-            //
+        String[] subs = subreddit.split("\\+");
+        int minLimit = Math.min(MAX_LISTING_LIMIT, _limit * subs.length);
 
-            List<CrawlerListener> copyListeners = 
-                                    new ArrayList<CrawlerListener>();
-            List<CrawlerMatchCriteria> copyCriteria = 
-                                    new ArrayList<CrawlerMatchCriteria>();
-            copyListeners(copyListeners, copyCriteria);
+        Cursor cursor = _cursors.get(subreddit.toLowerCase());
+        if(cursor == null) {
+            cursor = new Cursor(minLimit);
+            _cursors.put(subreddit.toLowerCase(), cursor);
+        }
 
-            //
-            // Run matchers against the comment
-            //
-            for(CrawlerMatchCriteria criteria: copyCriteria) {
-                CrawlerListener listener = criteria.getCrawlerListener();
-                if( copyListeners.contains(listener) &&
-                    criteria.match(comment)  ) {
-   
+        String before = null;
+        long newest = -1;
+        for(String sub: subs) {
+            String position = _state.getPosition(sub, listingType);
+            long value = Utils.fullnameToLong(position);
+            if(value > newest) {
+                newest = value;
+                before = position;
+            }
+        }
+
+        List<Submission> ret = new ArrayList<Submission>();
+
+        if(before == null || cursor.empty >= CURSOR_EMPTY_RESET) {
+            if(before != null) {
+                log("No new submissions after " + before + " in " + 
+                    subreddit + " " + cursor.empty + 
+                    " times. Fetching the head of the listing.");
+            }
+            cursor.empty = 0;
+            ret.addAll(fetchListing(
+                    subreddit, listingType, minLimit, null, null, visit));
+        } else {
+            for(int page = 0; page < _cursorMaxPages; page++) {
+                List<Submission> submissions = fetchListing(
+                        subreddit, listingType, cursor.limit, 
+                        before, null, visit);
+                ret.addAll(submissions);
+
+                if(submissions.size() < cursor.limit) {
                     //
+                    // Caught up. Shrink the page size if it was mostly 
+                    // empty.
                     //
-                    // log("Found match in comment " + comment.getName());
+                    if(submissions.size() < cursor.limit / 4) {
+                        cursor.limit = Math.max(minLimit, cursor.limit / 2);
+                    }
+                    break;
+                }
+
+                //
+                // A page full of new submissions. There may be more,
+                // fetch them in bigger pages.
+                //
+                before = submissions.get(0).getName();
+                cursor.limit = Math.min(MAX_LISTING_LIMIT, cursor.limit * 2);
+            }
+            cursor.empty = ret.isEmpty() ? cursor.empty + 1 : 0;
+        }
+
+        //
+        // Move each subreddit's cursor to its newest submission.
+        //
+        Map<String, Submission> newestBySub = new HashMap<String, Submission>();
+        for(Submission submission: ret) {
+            String sub = submission.getSubreddit();
+            if(sub == null || subs.length == 1) {
+                sub = subs[0];
+            }
+            Submission current = newestBySub.get(sub.toLowerCase());
+            if( current == null || 
+                Utils.fullnameToLong(submission.getName()) > 
+                                Utils.fullnameToLong(current.getName()) ) {
+                newestBySub.put(sub.toLowerCase(), submission);
+            }
+        }
+        for(String sub: subs) {
+            Submission submission = newestBySub.get(sub.toLowerCase());
+            if(submission != null) {
+                _state.setPosition(sub, listingType, submission.getName());
+            }
+        }
 
-                    listener.handleCrawlerEvent(
-                                new CrawlerEvent(   CrawlerEvent.CRAWLER_MATCH,
-                                                    comment,
-                                                    criteria,
-                                                    this )      );
+        return ret;
+    }
 
+    /**
+     *
+     * Fetch a combined a+b+c listing and fan it out, keeping at most 
+     * the limit of submissions per subreddit. Pages deeper while pages
+     * come back full and some subreddit still has fewer than the limit.
+     *
+     */
+    private List<Submission> fetchBatch(String group,
+                                        Submissions.ListingType listingType,
+                                        Visit visit ) throws IOException {
+
+        String[] subs = group.split("\\+");
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for(String sub: subs) {
+            counts.put(sub.toLowerCase(), 0);
+        }
+
+        int pageLimit = Math.min(MAX_LISTING_LIMIT, _limit * subs.length);
+        int wanting = counts.size();
+        String after = null;
+        List<Submission> ret = new ArrayList<Submission>();
+
+        //
+        // Never fewer pages than it takes to hold the limit of every 
+        // subreddit in the group, or even evenly spread groups would
+        // be truncated.
+        //
+        int maxPages = Math.max(_batchMaxPages, 
+                        (_limit * subs.length + pageLimit - 1) / pageLimit);
+        int page = 0;
+        boolean end = false;
+
+        for(; page < maxPages && wanting > 0; page++) {
+
+            List<Submission> submissions = fetchListing(
+                            group, listingType, pageLimit, null, after, visit);
+
+            for(Submission submission: submissions) {
+                String sub = submission.getSubreddit();
+                Integer count = sub == null ? 
+                                    null : counts.get(sub.toLowerCase());
+                if(count == null || count >= _limit) {
+                    continue;
                 }
+                if(count == 0) {
+                    //
+                    // Listings are newest (or hottest) first.
+                    //
+                    _state.setPosition(
+                            sub, listingType, submission.getName());
+                }
+                counts.put(sub.toLowerCase(), count + 1);
+                if(count + 1 == _limit) {
+                    wanting--;
+                }
+                ret.add(submission);
             }
 
-            List<Comment> replies = comment.getReplies();
-            recursiveCommentCheck(replies);
+            if(submissions.size() < pageLimit) {
+                // The end of the listing.
+                end = true;
+                break;
+            }
+            after = submissions.get(submissions.size() - 1).getName();
+        }
+
+        if(!end && wanting > 0) {
+            log("Page cap of " + maxPages + " reached with " + wanting +
+                " of " + subs.length + " subreddits under the limit in " +
+                listingType + " " + group);
         }
+
+        return ret;
     }
 
     /**
      *
-     * Create copies of listeners and criteria within a sync'ed block.
+     * Check a comment tree for matches.
+     *
+     * Walks the tree with CommentTree, without recursion. Replies 
+     * nested deeper than the maximum comment depth are skipped.
+     *
+     * @param comments  The top level comments.
+     * @param seen      Comments already checked on earlier visits,
+     *                  which are skipped. May be null.
      *
-     *      Copy our lists of listeners and criteria so we
-     *      don't get concurrent modification exceptions
-     *      if listeners want to remove themselves 
-     *      or their criteria as part of their response to an event;
+     * @return The number of comments checked and added to seen.
+     *
+     * Package private for the JMH benchmarks.
      *
      */
-    private void copyListeners( List<CrawlerListener> copyListeners,
-                                List<CrawlerMatchCriteria> copyCriteria ) {
-        synchronized(_lock) {
-            // Copy our lists of listeners and criteria so we
-            // don't get concurrent modification exceptions
-            // if listeners want to remove themselves 
-            // or their criteria as their response to a match
- 
-            for(CrawlerListener listener: _listeners) {
-                copyListeners.add(listener);
+    int commentTreeCheck(   List<Comment> comments,
+                            final LongHashSet seen ) {
+        final int[] added = new int[1];
+        CommentTree tree = CommentTree.walk(
+            comments,
+            new CommentTree.Visitor() {
+                public void visit(Comment comment, int depth) {
+                    if(commentCheck(comment, seen)) {
+                        added[0]++;
+                    }
+                }
+            },
+            _maxCommentDepth);
+
+        if(tree.getTooDeep() > 0) {
+            log("Skipped " + tree.getTooDeep() + 
+                " reply subtrees deeper than " + _maxCommentDepth);
+        }
+
+        return added[0];
+    }
+
+    /**
+     *
+     * Check a single comment for matches, unless it was checked on 
+     * an earlier visit.
+     *
+     * @return true if the comment was checked and added to seen.
+     *
+     */
+    private boolean commentCheck(Comment comment, LongHashSet seen) {
+        if(!isNew(seen, comment)) {
+            _evaluationsSkipped.increment();
+            return false;
+        }
+        _evaluations.increment();
+
+        //
+        // Check the comment to see if we have a match
+        //
+        matchThing(comment);
+        return true;
+    }
+
+    /**
+     *
+     * Run the match criteria against a Comment or Submission and notify 
+     * the listeners of matches.
+     *
+     * Keyword criteria are not run one by one. The thing's text is 
+     * normalized once and scanned once by the keyword automaton for all
+     * of them.
+     *
+     */
+    private void matchThing(Thing thing) {
+
+        //
+        // Match against the current snapshot. Listeners can
+        // remove themselves when called if they like.
+        //
+        CrawlerRegistry registry = _registry;
+
+        KeywordMatcher matcher = registry.keywordMatcher;
+        BitSet fired = null;
+        if(matcher.size() > 0) {
+            fired = matcher.match(KeywordMatcher.getText(thing));
+        }
+
+        for(CrawlerRegistry.Group group: registry.groups) {
+            for(CrawlerMatchCriteria criteria: group.criteria) {
+
+                int k = matcher.indexOf(criteria);
+                boolean match = k != -1 ? 
+                                    fired.get(k) : criteria.match(thing);
+
+                if(match) {
+
+                    //
+                    //
+                    // log("Found match in " + thing.getName());
+
+                    countMatch(criteria);
+
+                    long start = System.nanoTime();
+                    group.listener.handleCrawlerEvent(
+                            new CrawlerEvent(   CrawlerEvent.CRAWLER_MATCH, 
+                                                thing, 
+                                                criteria,
+                                                this )      );
+                    _dispatchLatency.record(System.nanoTime() - start);
+                }
             }
+        }
+    }
 
-            for(CrawlerMatchCriteria criteria: _criteria) {
-                copyCriteria.add(criteria);
+    private void countMatch(CrawlerMatchCriteria criteria) {
+        _matches.increment();
+        LongAdder count = _criteriaMatches.get(criteria);
+        if(count == null) {
+            count = new LongAdder();
+            LongAdder previous = _criteriaMatches.putIfAbsent(criteria, count);
+            if(previous != null) {
+                count = previous;
             }
-        }    
+        }
+        count.increment();
+    }
+
+    /**
+     *
+     * Publish a new snapshot of the listeners and criteria.
+     * Must hold _lock.
+     *
+     */
+    private void publish() {
+        _registry = new CrawlerRegistry(_listeners, _criteria, _mailboxes);
+    }
+
+    private static String listenerName(CrawlerListener listener) {
+        if(listener instanceof Bot) {
+            return ((Bot)listener).getName();
+        }
+        return listener.getClass().getSimpleName();
+    }
+
+    /**
+     *
+     * Check if a submission is seen for the first time in this pass,
+     * and count it as a duplicate avoided if not.
+     *
+     */
+    private boolean firstInPass(long key) {
+        boolean first;
+        synchronized(_passSubmissions) {
+            first = _passSubmissions.add(key);
+        }
+        if(!first) {
+            _duplicatesAvoided.increment();
+            _passDuplicatesAvoided.increment();
+        }
+        return first;
+    }
+
+    /**
+     *
+     * Check if a thing has not been matched against criteria yet, 
+     * and mark it as matched.
+     *
+     */
+    private static boolean isNew(LongHashSet seen, Thing thing) {
+        if(seen == null) {
+            return true;
+        }
+        long id = Utils.fullnameToLong(thing.getName());
+        if(id == -1) {
+            return true;
+        }
+        synchronized(seen) {
+            return seen.add(id);
+        }
     }
 
     protected static void log(String s) {
-        BotKernel.getBotKernel().log(s);
+        BotKernel.getBotKernel().log(Crawler.class, KernelLogger.INFO, s);
+    }
+
+    /**
+     *
+     * Log a message formatted by the log writer, and only if the level
+     * is enabled for crawlers, so per submission messages cost nothing
+     * when turned off.
+     *
+     */
+    protected static void log(int level, String format, Object... args) {
+        BotKernel.getBotKernel().log(Crawler.class, level, format, args);
     }
 
 }
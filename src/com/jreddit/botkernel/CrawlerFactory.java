@@ -2,6 +2,7 @@ package com.jreddit.botkernel;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.omrlnr.jreddit.*;
 
@@ -24,7 +25,13 @@ public class CrawlerFactory {
     // The singleton crawler instance.
     //
     private static Map<String, Crawler> _crawlers = 
-                                new HashMap<String, Crawler>();;
+                                new ConcurrentHashMap<String, Crawler>();
+
+    //
+    // Lock per crawler name, held while the crawler is created.
+    //
+    private static ConcurrentHashMap<String, Object> _locks = 
+                                new ConcurrentHashMap<String, Object>();
     
     //
     // Unique crawler names
@@ -41,19 +48,22 @@ public class CrawlerFactory {
         private int _count;
         private int _sleep;
         private int _limit;
+        private int _parallelism;
 
         public CrawlerSpec( String name, 
                             String propfile, 
                             String redditsfile,
                             int count,
                             int sleep,
-                            int limit) {
+                            int limit,
+                            int parallelism) {
             _name = name;
             _propfile = propfile;
             _redditsfile = redditsfile;
             _count = count;
             _sleep = sleep;
             _limit = limit;
+            _parallelism = parallelism;
         }
 
         public String getName() { return _name; }
@@ -62,6 +72,7 @@ public class CrawlerFactory {
         public int getCount() { return _count; }
         public int getSleep() { return _sleep; }
         public int getLimit() { return _limit; }
+        public int getParallelism() { return _parallelism; }
 
     }
 
@@ -71,13 +82,15 @@ public class CrawlerFactory {
                             "scratch/reddits.txt",
                             200,
                             60 * 60 * 2,
-                            10),
+                            10,
+                            4),
         new CrawlerSpec(    "TEST_CRAWLER",
                             "scratch/testcrawler.properties",
                             "scratch/testreddits.txt",
                             1,
                             30,
-                            10),
+                            10,
+                            1),
     };
         
     /**
@@ -85,7 +98,7 @@ public class CrawlerFactory {
      * Get the Crawler singleton instance
      *
      */
-    public static synchronized Crawler getCrawler(String name) {
+    public static Crawler getCrawler(String name) {
 
         //
         // See if we already have this crawler instance created.
@@ -95,6 +108,25 @@ public class CrawlerFactory {
             return crawler;
         } 
 
+        //
+        // Creating a crawler logs in to reddit. Only callers asking for
+        // the same crawler wait for each other, so bots initializing in 
+        // parallel do not queue behind each other's logins.
+        //
+        _locks.putIfAbsent(name, new Object());
+        synchronized(_locks.get(name)) {
+            crawler = _crawlers.get(name);
+            if(crawler == null) {
+                crawler = createCrawler(name);
+            }
+            return crawler;
+        }
+    }
+
+    private static Crawler createCrawler(String name) {
+
+        Crawler crawler;
+
         //
         // Crawler instance not present. Get the spec and create it.
         //
@@ -131,13 +163,14 @@ public class CrawlerFactory {
         String username = props.getProperty("username");
         String password = props.getProperty("password");
 
-        User user   = new User(username, password);        
+        User user   = SessionManager.getSessionManager().getUser(
+                                                        username, password);
 
         //
-        // Connect
+        // Connect, unless a bot using the same account already has.
         //
         try {
-            user.connect();
+            SessionManager.getSessionManager().connect(user);
         } catch(IOException ioe) {
             BotKernel.getBotKernel().log("ERROR conecting user for " + name);
         }
@@ -155,9 +188,128 @@ public class CrawlerFactory {
                                 spec.getLimit(),
                                 spec.getSleep());
 
+        //
+        // Number of units crawled concurrently. May be overridden
+        // in the crawler properties file.
+        //
+        crawler.setParallelism(
+            getIntProperty(props, "parallelism", spec.getParallelism()));
+
+        //
+        // Number of submissions whose comment counts are remembered.
+        //
+        crawler.setCommentCountCapacity(
+            getIntProperty( props, 
+                            "commentcache.capacity", 
+                            CommentCountCache.DEFAULT_CAPACITY));
+
+        //
+        // Number of already matched comments remembered.
+        //
+        crawler.setSeenCommentCapacity(
+            getIntProperty( props, 
+                            "seencomments.capacity", 
+                            SeenCommentIndex.DEFAULT_CAPACITY));
+
+        //
+        // Combine subreddits into a+b+c listing requests.
+        //
+        crawler.setBatchWidth(
+            getIntProperty(props, "batch.width", 1),
+            getIntProperty( props, 
+                            "batch.maxpages", 
+                            Crawler.DEFAULT_BATCH_MAX_PAGES));
+
+        //
+        // Pages of new submissions fetched per NEW listing.
+        //
+        crawler.setCursorMaxPages(
+            getIntProperty( props, 
+                            "cursor.maxpages", 
+                            Crawler.DEFAULT_CURSOR_MAX_PAGES));
+
+        //
+        // Crawl the whole reddits file a window at a time, instead of
+        // only its first spec count lines. The window defaults to the
+        // spec count, so a pass costs the same.
+        //
+        boolean rolling = Boolean.parseBoolean(
+                                props.getProperty("catalog.rolling", "false"));
+        if(rolling) {
+            try {
+                SubredditCatalog catalog = 
+                            SubredditCatalog.load(spec.getRedditsFile());
+                if(Boolean.parseBoolean(
+                            props.getProperty("catalog.shuffle", "false"))) {
+                    //
+                    // Same order every time for this crawler, so the 
+                    // persisted cursor stays meaningful.
+                    //
+                    catalog.shuffle(name.hashCode());
+                }
+                crawler.setCatalog(
+                    catalog,
+                    getIntProperty(props, "catalog.window", spec.getCount()),
+                    getIntProperty(props, "catalog.period", 0));
+                BotKernel.getBotKernel().log("Crawler " + name + 
+                                             " rolling over " + catalog);
+            } catch(IOException ioe) {
+                BotKernel.getBotKernel().log("ERROR loading catalog " + 
+                        spec.getRedditsFile() + " for " + name + ": " + ioe);
+                rolling = false;
+            }
+        }
+
+        //
+        // Visit subreddits as they become due instead of in passes.
+        // The budget defaults to what passes can make at most.
+        //
+        boolean adaptive = Boolean.parseBoolean(
+                            props.getProperty("schedule.adaptive", "false"));
+        if(adaptive && rolling) {
+            BotKernel.getBotKernel().log("ERROR " + name + 
+                    " cannot both roll over a catalog and schedule " + 
+                    "adaptively. Crawling in passes.");
+        } else if(adaptive) {
+            crawler.setAdaptiveSchedule(
+                getIntProperty( props, 
+                                "schedule.requestsperhour",
+                                crawler.getPassRequestsPerHour()),
+                getIntProperty( props,
+                                "schedule.mininterval",
+                                CrawlScheduler.DEFAULT_MIN_INTERVAL),
+                getIntProperty( props,
+                                "schedule.maxinterval",
+                                spec.getSleep()),
+                getIntProperty( props,
+                                "schedule.halflife",
+                                CrawlScheduler.DEFAULT_HALF_LIFE));
+        }
+
         _crawlers.put(name, crawler);
 
         return crawler;
     }
 
+    /**
+     *
+     * Get an int value from a crawler properties file.
+     *
+     */
+    private static int getIntProperty(  Properties props, 
+                                        String key, 
+                                        int defaultValue) {
+        String value = props.getProperty(key);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch(NumberFormatException nfe) {
+            BotKernel.getBotKernel().log(
+                        "ERROR invalid value " + value + " for " + key);
+            return defaultValue;
+        }
+    }
+
 }
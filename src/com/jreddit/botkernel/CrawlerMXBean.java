@@ -0,0 +1,142 @@
+package com.jreddit.botkernel;
+
+import java.util.Map;
+
+/**
+ *
+ * Runtime metrics of a crawler, registered with the platform MBean
+ * server by the BotKernel for every crawler it manages.
+ *
+ * Latencies are in milliseconds.
+ *
+ */
+public interface CrawlerMXBean {
+
+    public String getName();
+
+    /**
+     *
+     * The current (or last) pass number.
+     *
+     */
+    public long getPass();
+
+    /**
+     *
+     * Duration of the last completed pass, or for the adaptive
+     * schedule of the last round of visits.
+     *
+     */
+    public long getLastPassMillis();
+
+    /**
+     *
+     * Whether the crawler is crawling now, rather than waiting for its
+     * next pass or visit.
+     *
+     */
+    public boolean isCrawling();
+
+    /**
+     *
+     * Milliseconds until the next pass or visit, 0 while crawling and
+     * -1 once shut down.
+     *
+     */
+    public long getNextStepMillis();
+
+    /**
+     *
+     * Subreddits crawled per minute in the current pass, or the last
+     * one if the crawler is sleeping.
+     *
+     */
+    public double getSubredditsPerMinute();
+
+    public long getSubredditsCrawled();
+
+    /**
+     *
+     * Subreddits crawled so far in the current pass, out of
+     * getSubredditCount().
+     *
+     */
+    public long getPassSubreddits();
+
+    public int getSubredditCount();
+
+    /**
+     *
+     * For a rolling crawler, the number of subreddits in its catalog,
+     * the fraction of them crawled so far in the current cycle through
+     * the catalog, the number of completed cycles and how long the last
+     * one took. The size is 0 for crawlers of a fixed list.
+     *
+     */
+    public int getCatalogSize();
+
+    public double getCatalogCoverage();
+
+    public int getCatalogCycles();
+
+    public long getLastCatalogCycleMillis();
+
+    /**
+     *
+     * Latency of listing requests actually made, not served from the
+     * response cache.
+     *
+     */
+    public LatencyHistogram.Snapshot getListingLatency();
+
+    /**
+     *
+     * Latency of comment tree fetches actually made, not served from
+     * the response cache.
+     *
+     */
+    public LatencyHistogram.Snapshot getCommentLatency();
+
+    /**
+     *
+     * Time spent in listeners' handleCrawlerEvent(). Listeners with a
+     * mailbox only queue the event.
+     *
+     */
+    public LatencyHistogram.Snapshot getDispatchLatency();
+
+    /**
+     *
+     * Submissions not checked because their comment count had not
+     * changed.
+     *
+     */
+    public long getSubmissionsSkipped();
+
+    public long getEvaluations();
+
+    public long getEvaluationsSkipped();
+
+    public long getDuplicatesAvoided();
+
+    public long getMatches();
+
+    /**
+     *
+     * Matches per registered criteria, by a description of the
+     * criteria and its listener.
+     *
+     */
+    public Map<String, Long> getMatchesPerCriteria();
+
+    /**
+     *
+     * Rate limit errors from reddit, and the seconds requests were
+     * held for them.
+     *
+     */
+    public long getRateLimitSleeps();
+
+    public long getRateLimitSeconds();
+
+}
@@ -0,0 +1,127 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+
+/**
+ *
+ * Immutable snapshot of a crawler's listeners and match criteria.
+ *
+ * A crawler builds a new snapshot whenever a listener or criteria is
+ * added or removed and publishes it through a volatile field. The crawl
+ * reads the current snapshot without locking or copying, once per 
+ * Comment or Submission, so listeners can still add or remove 
+ * themselves or their criteria while handling an event.
+ *
+ * Criteria are grouped by listener, and only criteria of registered
+ * listeners are kept. Keyword criteria are also compiled into a single
+ * KeywordMatcher. Events go to each listener's mailbox, if it has one,
+ * rather than to the listener directly.
+ *
+ */
+class CrawlerRegistry {
+
+    //
+    // The registry of a crawler with no listeners or criteria.
+    //
+    static final CrawlerRegistry EMPTY = 
+            new CrawlerRegistry(new ArrayList<CrawlerListener>(),
+                                new ArrayList<CrawlerMatchCriteria>(),
+                                new HashMap<CrawlerListener, ListenerMailbox>());
+
+    /**
+     *
+     * A listener and its criteria.
+     *
+     */
+    static class Group {
+
+        //
+        // Where to send events for the listener. The listener itself
+        // or its mailbox.
+        //
+        final CrawlerListener listener;
+
+        final CrawlerMatchCriteria[] criteria;
+
+        Group(CrawlerListener listener, List<CrawlerMatchCriteria> criteria) {
+            this.listener = listener;
+            this.criteria = criteria.toArray(new CrawlerMatchCriteria[0]);
+        }
+    }
+
+    //
+    // Where to send events for each registered listener.
+    //
+    final CrawlerListener[] listeners;
+
+    final Group[] groups;
+
+    final KeywordMatcher keywordMatcher;
+
+    /**
+     *
+     * Build a snapshot.
+     *
+     * @param listeners The registered listeners.
+     * @param criteria  The registered criteria, in registration order.
+     * @param mailboxes The mailboxes of asynchronous listeners.
+     *
+     */
+    CrawlerRegistry(List<CrawlerListener> listeners, 
+                    List<CrawlerMatchCriteria> criteria,
+                    Map<CrawlerListener, ListenerMailbox> mailboxes) {
+
+        this.listeners = new CrawlerListener[listeners.size()];
+        for(int i = 0; i < listeners.size(); i++) {
+            this.listeners[i] = target(listeners.get(i), mailboxes);
+        }
+
+        //
+        // Group criteria by listener, in listener registration order.
+        //
+        Map<CrawlerListener, List<CrawlerMatchCriteria>> byListener = 
+            new LinkedHashMap<CrawlerListener, List<CrawlerMatchCriteria>>();
+        for(CrawlerListener listener: listeners) {
+            byListener.put(listener, new ArrayList<CrawlerMatchCriteria>());
+        }
+
+        List<KeywordMatchCriteria> keywordCriteria = 
+                                    new ArrayList<KeywordMatchCriteria>();
+
+        for(CrawlerMatchCriteria c: criteria) {
+            List<CrawlerMatchCriteria> group = 
+                                    byListener.get(c.getCrawlerListener());
+            if(group == null) {
+                // Listener not registered, never matched.
+                continue;
+            }
+            group.add(c);
+            if(c instanceof KeywordMatchCriteria) {
+                keywordCriteria.add((KeywordMatchCriteria)c);
+            }
+        }
+
+        List<Group> groups = new ArrayList<Group>();
+        for(Map.Entry<CrawlerListener, List<CrawlerMatchCriteria>> entry: 
+                                                    byListener.entrySet()) {
+            if(!entry.getValue().isEmpty()) {
+                groups.add(new Group(
+                                    target(entry.getKey(), mailboxes),
+                                    entry.getValue()));
+            }
+        }
+        this.groups = groups.toArray(new Group[0]);
+
+        this.keywordMatcher = keywordCriteria.isEmpty() ? 
+                                KeywordMatcher.EMPTY :
+                                new KeywordMatcher(keywordCriteria);
+    }
+
+    private static CrawlerListener target(
+                            CrawlerListener listener,
+                            Map<CrawlerListener, ListenerMailbox> mailboxes) {
+        ListenerMailbox mailbox = mailboxes.get(listener);
+        return mailbox != null ? mailbox : listener;
+    }
+
+}
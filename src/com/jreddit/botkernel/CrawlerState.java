@@ -0,0 +1,478 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Durable crawler state.
+ *
+ * Keeps what a crawler has learned across kernel restarts in a memory
+ * mapped file under scratch/, so the first pass after a restart costs
+ * no more than a steady state pass and a kernel killed mid pass resumes
+ * where it stopped.
+ *
+ * The file is a log of fixed size records, appended to during the pass:
+ *
+ *      submission comment counts,
+ *      the newest fullname seen per (subreddit, listing type),
+ *      pass start and completion,
+ *      each (subreddit, listing type) unit finished in the current pass,
+ *      the position in the subreddit catalog, for a rolling crawler.
+ *
+ * The log is replayed when the state is opened. When it fills up it is
+ * compacted into a new file holding only the live state.
+ *
+ * Writes land in the shared mapping, so they survive the process being
+ * killed. A record's type is written last, so a record torn by a kill
+ * is ignored on replay.
+ *
+ */
+public class CrawlerState {
+
+    public static final String DIRECTORY = "scratch";
+
+    private static final long MAGIC = 0x424b535441544531L;  // "BKSTATE1"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 24;
+
+    private static final int INITIAL_SIZE = 1024 * 1024;
+
+    //
+    // Record types
+    //
+    private static final int COUNT          = 1;    // key, comment count
+    private static final int POSITION       = 2;    // unit, fullname
+    private static final int PASS_START     = 3;    // pass, millis
+    private static final int UNIT_DONE      = 4;    // unit, pass
+    private static final int PASS_COMPLETE  = 5;    // pass, millis
+    private static final int CATALOG        = 6;    // cycle:cursor, millis
+
+    private String _name;
+
+    private File _file;
+
+    private MappedByteBuffer _buffer;
+
+    //
+    // Offset at which the next record is appended.
+    //
+    private int _position;
+
+    //
+    // The comment count cache of the crawler, filled on replay and
+    // snapshotted on compaction. Only updated through recordCount(), so
+    // it never holds a count which was not recorded.
+    //
+    private CommentCountCache _counts;
+
+    //
+    // Newest fullname (decoded) per unit.
+    //
+    private Map<Long, Long> _positions = new HashMap<Long, Long>();
+
+    //
+    // Units finished in the current pass.
+    //
+    private Set<Long> _done = new HashSet<Long>();
+
+    //
+    // Read without locking, e.g. by the status endpoint.
+    //
+    private volatile long _pass = 0;
+
+    private boolean _passComplete = true;
+
+    //
+    // Position of the next window in the subreddit catalog, the number
+    // of times the whole catalog was crawled, and when the current
+    // cycle started (0 if never).
+    //
+    private volatile int _catalogCursor = 0;
+    private volatile int _catalogCycle = 0;
+    private volatile long _catalogCycleStart = 0;
+
+    /**
+     *
+     * Open (or create) the state of a crawler and replay it into
+     * the given comment count cache.
+     *
+     * If the state file cannot be used the crawler still runs, it just
+     * does not keep its state across restarts.
+     *
+     * @param name      The crawler name.
+     * @param counts    The crawler's comment count cache.
+     *
+     */
+    public CrawlerState(String name, CommentCountCache counts) {
+        _name = name;
+        _counts = counts;
+        _file = new File(DIRECTORY, name + ".state");
+        try {
+            open();
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+            log("ERROR Cannot open crawler state " + _file +
+                ". Crawler " + name + " state will not be kept.");
+            _buffer = null;
+        }
+    }
+
+    /**
+     *
+     * Replace the comment count cache, e.g. after it was resized.
+     * Entries are copied from the old cache.
+     *
+     */
+    public synchronized void setCommentCountCache(
+                                            final CommentCountCache counts) {
+        _counts.forEach(new CommentCountCache.Visitor() {
+            public void visit(long key, long value) {
+                counts.put(key, value);
+            }
+        });
+        _counts = counts;
+    }
+
+    /**
+     *
+     * Record the comment count of a submission once it was checked, and
+     * cache it.
+     *
+     */
+    public synchronized void recordCount(long key, long count) {
+        _counts.put(key, count);
+        append(COUNT, key, count);
+    }
+
+    /**
+     *
+     * Get the newest fullname seen in a subreddit listing.
+     *
+     * @return The fullname or null if none was recorded.
+     *
+     */
+    public synchronized String getPosition(
+                                    String subreddit,
+                                    Submissions.ListingType listingType) {
+        Long position = _positions.get(unit(subreddit, listingType));
+        if(position == null) {
+            return null;
+        }
+        return Utils.longToFullname(position.longValue());
+    }
+
+    /**
+     *
+     * Record the newest fullname seen in a subreddit listing.
+     *
+     */
+    public synchronized void setPosition(
+                                    String subreddit,
+                                    Submissions.ListingType listingType,
+                                    String fullname) {
+        long value = Utils.fullnameToLong(fullname);
+        if(value == -1) {
+            return;
+        }
+        long unit = unit(subreddit, listingType);
+        Long previous = _positions.put(unit, value);
+        if(previous == null || previous.longValue() != value) {
+            append(POSITION, unit, value);
+        }
+    }
+
+    /**
+     *
+     * Start a pass. If the previous pass was interrupted (the kernel was
+     * stopped mid pass) it is resumed instead, and units it had already
+     * finished report isDone().
+     *
+     * @return true if an interrupted pass is being resumed.
+     *
+     */
+    public synchronized boolean startPass() {
+        if(!_passComplete) {
+            log("Crawler " + _name + " resuming pass " + _pass +
+                " with " + _done.size() + " units already done.");
+            return true;
+        }
+        _pass++;
+        _passComplete = false;
+        _done.clear();
+        append(PASS_START, _pass, System.currentTimeMillis());
+        return false;
+    }
+
+    /**
+     *
+     * Check if a unit was already finished in the current pass.
+     *
+     */
+    public synchronized boolean isDone(
+                                    String subreddit,
+                                    Submissions.ListingType listingType) {
+        return _done.contains(unit(subreddit, listingType));
+    }
+
+    /**
+     *
+     * Record that a unit was finished in the current pass.
+     *
+     */
+    public synchronized void unitDone(
+                                    String subreddit,
+                                    Submissions.ListingType listingType) {
+        long unit = unit(subreddit, listingType);
+        if(_done.add(unit)) {
+            append(UNIT_DONE, unit, _pass);
+        }
+    }
+
+    /**
+     *
+     * Record that the current pass completed, and flush the state.
+     *
+     */
+    public synchronized void completePass() {
+        _passComplete = true;
+        _done.clear();
+        append(PASS_COMPLETE, _pass, System.currentTimeMillis());
+        if(_buffer != null) {
+            _buffer.force();
+        }
+    }
+
+    public long getPass() { return _pass; }
+
+    /**
+     *
+     * Record the position in the subreddit catalog. Forced to disk with
+     * the next completePass().
+     *
+     * @param cursor        Position of the next window.
+     * @param cycle         Number of completed crawls of the catalog.
+     * @param cycleStart    When the current crawl of the catalog started.
+     *
+     */
+    public synchronized void setCatalogCursor(int cursor, 
+                                              int cycle, 
+                                              long cycleStart) {
+        _catalogCursor = cursor;
+        _catalogCycle = cycle;
+        _catalogCycleStart = cycleStart;
+        append(CATALOG, ((long)cycle << 32) | cursor, cycleStart);
+    }
+
+    public int getCatalogCursor() { return _catalogCursor; }
+
+    public int getCatalogCycle() { return _catalogCycle; }
+
+    public long getCatalogCycleStart() { return _catalogCycleStart; }
+
+    /**
+     *
+     * Map the state file, creating it if needed, and replay it.
+     *
+     */
+    private void open() throws IOException {
+        if(!_file.exists() || _file.length() < HEADER_SIZE) {
+            map(_file, INITIAL_SIZE);
+            writeHeader();
+            return;
+        }
+
+        map(_file, (int)_file.length());
+        if( _buffer.getLong(0) != MAGIC ||
+            _buffer.getInt(8) != VERSION ||
+            _buffer.getInt(12) != RECORD_SIZE ) {
+            log("ERROR Unknown crawler state format in " + _file +
+                ". Starting over.");
+            map(_file, INITIAL_SIZE);
+            for(int i = 0; i < INITIAL_SIZE; i += 8) {
+                _buffer.putLong(i, 0);
+            }
+            writeHeader();
+            return;
+        }
+
+        _position = HEADER_SIZE;
+        int records = 0;
+        while(_position + RECORD_SIZE <= _buffer.capacity()) {
+            int type = _buffer.getInt(_position);
+            int check = _buffer.getInt(_position + 4);
+            long a = _buffer.getLong(_position + 8);
+            long b = _buffer.getLong(_position + 16);
+            if(type == 0 || check != check(type, a, b)) {
+                break;
+            }
+            replay(type, a, b);
+            _position += RECORD_SIZE;
+            records++;
+        }
+
+        log("Crawler " + _name + " state loaded: " + records +
+            " records, " + _counts.size() + " comment counts, " +
+            _positions.size() + " listing positions, pass " + _pass +
+            (_passComplete ? " complete." : " interrupted."));
+    }
+
+    private void replay(int type, long a, long b) {
+        switch(type) {
+            case COUNT:
+                _counts.put(a, b);
+                break;
+            case POSITION:
+                _positions.put(a, b);
+                break;
+            case PASS_START:
+                _pass = a;
+                _passComplete = false;
+                _done.clear();
+                break;
+            case UNIT_DONE:
+                if(b == _pass) {
+                    _done.add(a);
+                }
+                break;
+            case PASS_COMPLETE:
+                if(a == _pass) {
+                    _passComplete = true;
+                    _done.clear();
+                }
+                break;
+            case CATALOG:
+                _catalogCycle = (int)(a >>> 32);
+                _catalogCursor = (int)a;
+                _catalogCycleStart = b;
+                break;
+        }
+    }
+
+    private void append(int type, long a, long b) {
+        if(_buffer == null) {
+            return;
+        }
+        if(_position + RECORD_SIZE > _buffer.capacity()) {
+            try {
+                compact();
+            } catch(IOException ioe) {
+                ioe.printStackTrace();
+                log("ERROR Compacting crawler state " + _file +
+                    " failed. Crawler " + _name +
+                    " state will not be kept.");
+                _buffer = null;
+                return;
+            }
+        }
+        _buffer.putLong(_position + 8, a);
+        _buffer.putLong(_position + 16, b);
+        _buffer.putInt(_position + 4, check(type, a, b));
+        _buffer.putInt(_position, type);
+        _position += RECORD_SIZE;
+    }
+
+    /**
+     *
+     * Write the live state to a new file, replace the old one with it,
+     * and continue appending to the new one. The file grows if the live
+     * state alone would fill more than half of it.
+     *
+     */
+    private void compact() throws IOException {
+
+        int records = _counts.size() + _positions.size() + _done.size() + 3;
+        int size = _buffer.capacity();
+        while(HEADER_SIZE + records * (long)RECORD_SIZE > size / 2) {
+            size *= 2;
+        }
+
+        log("Compacting crawler " + _name + " state, " + records +
+            " live records, " + size + " bytes.");
+
+        File tmp = new File(DIRECTORY, _name + ".state.tmp");
+        tmp.delete();
+        map(tmp, size);
+        writeHeader();
+
+        _counts.forEach(new CommentCountCache.Visitor() {
+            public void visit(long key, long value) {
+                append(COUNT, key, value);
+            }
+        });
+        for(Map.Entry<Long, Long> entry: _positions.entrySet()) {
+            append(POSITION, entry.getKey(), entry.getValue());
+        }
+        if(_catalogCycleStart != 0) {
+            append(CATALOG, ((long)_catalogCycle << 32) | _catalogCursor,
+                   _catalogCycleStart);
+        }
+        append(PASS_START, _pass, System.currentTimeMillis());
+        if(_passComplete) {
+            append(PASS_COMPLETE, _pass, System.currentTimeMillis());
+        } else {
+            for(Long unit: _done) {
+                append(UNIT_DONE, unit, _pass);
+            }
+        }
+        _buffer.force();
+
+        if(!tmp.renameTo(_file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + _file);
+        }
+    }
+
+    private void map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            _buffer = raf.getChannel().map(
+                                FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            //
+            // The mapping stays valid after the file is closed.
+            //
+            raf.close();
+        }
+    }
+
+    private void writeHeader() {
+        _buffer.putLong(0, MAGIC);
+        _buffer.putInt(8, VERSION);
+        _buffer.putInt(12, RECORD_SIZE);
+        _position = HEADER_SIZE;
+    }
+
+    private static int check(int type, long a, long b) {
+        long h = type * 0x9E3779B97F4A7C15L;
+        h = (h ^ a) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ b) * 0x165667B19E3779F9L;
+        return (int)(h ^ (h >>> 32)) | 1;
+    }
+
+    /**
+     *
+     * 64 bit FNV-1a hash identifying a (subreddit, listing type) unit.
+     *
+     */
+    private static long unit(String subreddit,
+                             Submissions.ListingType listingType) {
+        String s = subreddit.toLowerCase() + "/" + listingType.name();
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static void log(String s) {
+        BotKernel.getBotKernel().log(s);
+    }
+
+}
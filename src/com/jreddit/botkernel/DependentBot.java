@@ -0,0 +1,22 @@
+package com.jreddit.botkernel;
+
+/**
+ *
+ * A bot whose init() must not start before other bots have finished
+ * theirs, e.g. because it uses a crawler another bot adds.
+ *
+ * Bots loaded together are initialized in parallel. A DependentBot
+ * waits for the bots it names, and is not started if one of them fails
+ * to load. Bots already running count as loaded.
+ *
+ */
+public interface DependentBot extends Bot {
+
+    /**
+     *
+     * The names, as returned by getName(), of the bots to wait for.
+     *
+     */
+    public String[] getDependencies();
+
+}
@@ -0,0 +1,528 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Asynchronous kernel logger.
+ *
+ * log() only claims a slot in a fixed size ring buffer with a compare
+ * and set and fills it in. One writer thread takes messages off the
+ * buffer, formats them and writes them out, buffered, to standard out
+ * or to a log file rotated by size. Threads logging never wait on each
+ * other or on the output.
+ *
+ * Messages below the level of their source class are dropped before
+ * anything is built. Formatting a message with arguments is left to
+ * the writer thread, so arguments are turned into strings after the
+ * call returns. Pass immutable values, or use a Message for anything
+ * expensive to describe.
+ *
+ * If the buffer is full DEBUG and INFO messages are dropped, and
+ * counted. WARN and ERROR messages wait for room.
+ *
+ */
+public class KernelLogger {
+
+    //
+    // Levels
+    //
+    public static final int DEBUG   = 0;
+    public static final int INFO    = 1;
+    public static final int WARN    = 2;
+    public static final int ERROR   = 3;
+    public static final int OFF     = 4;
+
+    private static final String[] LEVEL_NAMES =
+                                    { "DEBUG", "INFO", "WARN", "ERROR" };
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    public static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    /**
+     *
+     * A message built only if it is written.
+     *
+     */
+    public interface Message {
+        public String get();
+    }
+
+    /**
+     *
+     * A ring buffer slot. Slots are reused, so logging allocates
+     * nothing beyond the caller's message and arguments.
+     *
+     */
+    private static class Slot {
+        long time;
+        int level;
+        String thread;
+        String text;
+        Object[] args;
+        Message message;
+    }
+
+    private Slot[] _slots;
+
+    //
+    // Sequence number of each slot. A slot may be filled at position p
+    // when its sequence is p, and read when it is p + 1.
+    //
+    private AtomicLongArray _sequences;
+
+    private int _mask;
+
+    //
+    // Next position to fill, shared by all logging threads.
+    //
+    private AtomicLong _tail = new AtomicLong();
+
+    //
+    // Next position to read, only used by the writer.
+    //
+    private long _head = 0;
+
+    //
+    // Position up to which messages have been written out.
+    //
+    private volatile long _written = 0;
+
+    private Thread _writer;
+
+    private volatile boolean _writerWaiting = false;
+
+    private LongAdder _dropped = new LongAdder();
+
+    //
+    // Levels. The default, and by class name prefix, with the level
+    // resolved for each source class cached. Cached by name so the
+    // cache does not keep classes of unloaded bots reachable.
+    //
+    private volatile int _level = INFO;
+    private Map<String, Integer> _levels =
+                                    new ConcurrentHashMap<String, Integer>();
+    private Map<String, Integer> _resolved =
+                                    new ConcurrentHashMap<String, Integer>();
+
+    //
+    // Output, only touched by the writer thread once started.
+    //
+    private volatile String _file = null;
+    private volatile long _maxBytes = DEFAULT_MAX_BYTES;
+    private volatile int _maxFiles = DEFAULT_MAX_FILES;
+    private volatile boolean _reopen = false;
+    private Writer _out = null;
+    private long _bytes = 0;
+
+    private SimpleDateFormat _dateFormat =
+                                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private long _lastSecond = -1;
+    private String _lastDate;
+
+    /**
+     *
+     * Create a logger and start its writer thread.
+     *
+     * @param capacity  The number of messages the buffer holds, rounded
+     *                  up to a power of two.
+     *
+     */
+    public KernelLogger(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        _slots = new Slot[size];
+        _sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            _slots[i] = new Slot();
+            _sequences.set(i, i);
+        }
+        _mask = size - 1;
+
+        _writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        });
+        _writer.setName("log-writer");
+        _writer.setDaemon(true);
+        _writer.start();
+
+        //
+        // Do not lose the last messages when the JVM exits.
+        //
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     *
+     * Set the default level.
+     *
+     */
+    public void setLevel(int level) {
+        _level = level;
+        _resolved.clear();
+    }
+
+    /**
+     *
+     * Set the level of the classes whose name starts with a prefix,
+     * e.g. a class or a package name. The longest matching prefix wins.
+     *
+     */
+    public void setLevel(String prefix, int level) {
+        _levels.put(prefix, level);
+        _resolved.clear();
+    }
+
+    /**
+     *
+     * Parse a level name, DEBUG, INFO, WARN, ERROR or OFF.
+     *
+     * @return The level, or -1 if the name is not a level.
+     *
+     */
+    public static int parseLevel(String name) {
+        name = name.trim().toUpperCase();
+        for(int i = 0; i < LEVEL_NAMES.length; i++) {
+            if(LEVEL_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return name.equals("OFF") ? OFF : -1;
+    }
+
+    /**
+     *
+     * Write to a file instead of standard out. The file is rotated when
+     * it grows past maxBytes, keeping maxFiles old files as file.1
+     * (newest) to file.N.
+     *
+     */
+    public void setFile(String file, long maxBytes, int maxFiles) {
+        _file = file;
+        _maxBytes = Math.max(1024, maxBytes);
+        _maxFiles = Math.max(0, maxFiles);
+        _reopen = true;
+        LockSupport.unpark(_writer);
+    }
+
+    /**
+     *
+     * Check if messages of a level from a class would be written.
+     *
+     * @param source    The class logging, or null.
+     *
+     */
+    public boolean isEnabled(Class<?> source, int level) {
+        return level >= getLevel(source);
+    }
+
+    /**
+     *
+     * Log a message.
+     *
+     * @param source    The class logging, or null.
+     * @param level     The level of the message.
+     * @param text      The message.
+     *
+     */
+    public void log(Class<?> source, int level, String text) {
+        if(isEnabled(source, level)) {
+            enqueue(level, text, null, null);
+        }
+    }
+
+    /**
+     *
+     * Log a message formatted, by the writer, with String.format().
+     *
+     */
+    public void log(Class<?> source,
+                    int level,
+                    String format,
+                    Object... args) {
+        if(isEnabled(source, level)) {
+            enqueue(level, format, args, null);
+        }
+    }
+
+    /**
+     *
+     * Log a message built, by the writer, only if the level is enabled.
+     *
+     */
+    public void log(Class<?> source, int level, Message message) {
+        if(isEnabled(source, level)) {
+            enqueue(level, null, null, message);
+        }
+    }
+
+    /**
+     *
+     * Wait until everything logged so far has been written out, for at
+     * most a few seconds.
+     *
+     */
+    public void flush() {
+        long target = _tail.get();
+        long deadline = System.nanoTime() + 5000000000L;
+        while(_written < target && System.nanoTime() - deadline < 0) {
+            LockSupport.unpark(_writer);
+            LockSupport.parkNanos(1000000);
+        }
+    }
+
+    /**
+     *
+     * The number of messages dropped because the buffer was full.
+     *
+     */
+    public long getDropped() { return _dropped.sum(); }
+
+    private int getLevel(Class<?> source) {
+        if(source == null || _levels.isEmpty()) {
+            return _level;
+        }
+        String name = source.getName();
+        Integer level = _resolved.get(name);
+        if(level == null) {
+            level = _level;
+            int longest = -1;
+            for(Map.Entry<String, Integer> entry: _levels.entrySet()) {
+                String prefix = entry.getKey();
+                if(name.startsWith(prefix) && prefix.length() > longest) {
+                    longest = prefix.length();
+                    level = entry.getValue();
+                }
+            }
+            _resolved.put(name, level);
+        }
+        return level;
+    }
+
+    private void enqueue(int level,
+                         String text,
+                         Object[] args,
+                         Message message) {
+        long position;
+        int index;
+        while(true) {
+            position = _tail.get();
+            index = (int)position & _mask;
+            long available = _sequences.get(index) - position;
+            if(available == 0) {
+                if(_tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if(available < 0) {
+                //
+                // Full.
+                //
+                if(level < WARN) {
+                    _dropped.increment();
+                    return;
+                }
+                LockSupport.unpark(_writer);
+                Thread.yield();
+            }
+        }
+
+        Slot slot = _slots[index];
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.thread = Thread.currentThread().getName();
+        slot.text = text;
+        slot.args = args;
+        slot.message = message;
+        _sequences.set(index, position + 1);
+
+        if(_writerWaiting) {
+            LockSupport.unpark(_writer);
+        }
+    }
+
+    /**
+     *
+     * The writer thread.
+     *
+     */
+    private void write() {
+        long reportedDrops = 0;
+        while(true) {
+            if(_reopen) {
+                _reopen = false;
+                open();
+            }
+
+            int count = 0;
+            while(true) {
+                int index = (int)_head & _mask;
+                if(_sequences.get(index) != _head + 1) {
+                    break;
+                }
+                Slot slot = _slots[index];
+                String line = format(slot);
+                slot.text = null;
+                slot.args = null;
+                slot.message = null;
+                slot.thread = null;
+                _sequences.set(index, _head + _slots.length);
+                _head++;
+                output(line);
+                count++;
+            }
+
+            long dropped = _dropped.sum();
+            if(dropped != reportedDrops) {
+                output(date(System.currentTimeMillis()) + " WARN [log-writer] " +
+                        (dropped - reportedDrops) +
+                        " messages dropped, log buffer full.");
+                reportedDrops = dropped;
+            }
+
+            if(count > 0) {
+                flushOutput();
+                _written = _head;
+                continue;
+            }
+
+            _writerWaiting = true;
+            int index = (int)_head & _mask;
+            if(_sequences.get(index) != _head + 1 && !_reopen) {
+                LockSupport.parkNanos(100000000);
+            }
+            _writerWaiting = false;
+        }
+    }
+
+    private String format(Slot slot) {
+        String text;
+        try {
+            if(slot.message != null) {
+                text = slot.message.get();
+            } else if(slot.args != null) {
+                text = String.format(slot.text, slot.args);
+            } else {
+                text = slot.text;
+            }
+        } catch(RuntimeException re) {
+            text = "Cannot format log message " + slot.text + ": " + re;
+        }
+        return date(slot.time) +
+                (slot.level == INFO ? "" : " " + LEVEL_NAMES[slot.level]) +
+                " [" + slot.thread + "] " +
+                text;
+    }
+
+    /**
+     *
+     * Format a time, reusing the string for messages in the same second.
+     *
+     */
+    private String date(long time) {
+        long second = time / 1000;
+        if(second != _lastSecond) {
+            _lastSecond = second;
+            _lastDate = _dateFormat.format(new Date(time));
+        }
+        return _lastDate;
+    }
+
+    private void output(String line) {
+        if(_out == null) {
+            System.out.println(line);
+            return;
+        }
+        try {
+            _out.write(line);
+            _out.write('\n');
+            _bytes += line.length() + 1;
+            if(_bytes > _maxBytes) {
+                rotate();
+            }
+        } catch(IOException ioe) {
+            System.out.println(line);
+            System.out.println("ERROR Writing log file " + _file +
+                               ": " + ioe + ". Logging to standard out.");
+            close();
+        }
+    }
+
+    private void flushOutput() {
+        if(_out == null) {
+            System.out.flush();
+            return;
+        }
+        try {
+            _out.flush();
+        } catch(IOException ioe) {
+            System.out.println("ERROR Flushing log file " + _file +
+                               ": " + ioe + ". Logging to standard out.");
+            close();
+        }
+    }
+
+    private void open() {
+        close();
+        if(_file == null) {
+            return;
+        }
+        try {
+            File file = new File(_file);
+            if(file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            _bytes = file.length();
+            _out = new BufferedWriter(new OutputStreamWriter(
+                                new FileOutputStream(file, true), "UTF-8"),
+                                64 * 1024);
+        } catch(IOException ioe) {
+            System.out.println("ERROR Cannot open log file " + _file +
+                               ": " + ioe + ". Logging to standard out.");
+            _out = null;
+        }
+    }
+
+    private void close() {
+        if(_out != null) {
+            try {
+                _out.close();
+            } catch(IOException ioe) {
+                // Nothing more to do with it.
+            }
+            _out = null;
+        }
+    }
+
+    /**
+     *
+     * Shift file.N-1 to file.N ... file to file.1 and start a new file.
+     *
+     */
+    private void rotate() {
+        close();
+        if(_maxFiles == 0) {
+            new File(_file).delete();
+        } else {
+            new File(_file + "." + _maxFiles).delete();
+            for(int i = _maxFiles - 1; i >= 1; i--) {
+                new File(_file + "." + i).renameTo(
+                                        new File(_file + "." + (i + 1)));
+            }
+            new File(_file).renameTo(new File(_file + ".1"));
+        }
+        open();
+    }
+
+}
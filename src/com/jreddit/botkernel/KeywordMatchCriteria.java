@@ -0,0 +1,77 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Match criteria which matches a Comment body, or the selftext of
+ * a self post Submission, containing any of a set of keywords.
+ * Matching ignores case.
+ *
+ * A Crawler does not call match() for these. It compiles the keywords
+ * of all its keyword criteria into a single KeywordMatcher and scans
+ * each comment once for all of them.
+ *
+ */
+public class KeywordMatchCriteria implements CrawlerMatchCriteria {
+
+    private CrawlerListener _listener;
+
+    private String[] _keywords;
+
+    /**
+     *
+     * Create a new keyword criteria.
+     *
+     * @param listener  The listener interested in matches.
+     * @param keywords  The keywords to look for.
+     *
+     * @throws IllegalArgumentException if a keyword is empty or only
+     *          whitespace, which would match every thing.
+     *
+     */
+    public KeywordMatchCriteria(CrawlerListener listener, String... keywords) {
+        _listener = listener;
+        _keywords = new String[keywords.length];
+        for(int i = 0; i < keywords.length; i++) {
+            if(keywords[i] == null || keywords[i].trim().length() == 0) {
+                throw new IllegalArgumentException(
+                            "Empty keyword: \"" + keywords[i] + "\"");
+            }
+            _keywords[i] = KeywordMatcher.normalize(keywords[i]);
+        }
+    }
+
+    /**
+     *
+     * Get the keywords, normalized.
+     *
+     */
+    public String[] getKeywords() {
+        return _keywords.clone();
+    }
+
+    public boolean match(Thing thing) {
+        String text = KeywordMatcher.getText(thing);
+        if(text == null) {
+            return false;
+        }
+        for(String keyword: _keywords) {
+            if(text.indexOf(keyword) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public CrawlerListener getCrawlerListener() {
+        return _listener;
+    }
+
+    public String toString() {
+        return "KeywordMatchCriteria" + Arrays.toString(_keywords);
+    }
+
+}
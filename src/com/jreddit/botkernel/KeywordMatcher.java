@@ -0,0 +1,231 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Aho-Corasick automaton over the keywords of a set of
+ * KeywordMatchCriteria.
+ *
+ * Scans a text once, in time proportional to its length and the 
+ * number of hits, whatever the number of keywords, and reports every
+ * criteria with a keyword in the text.
+ *
+ * Immutable once built, so crawlers rebuild and swap in a new one when 
+ * their criteria change and scan without locking.
+ *
+ */
+public class KeywordMatcher {
+
+    //
+    // An automaton with no criteria.
+    //
+    public static final KeywordMatcher EMPTY = 
+                new KeywordMatcher(new ArrayList<KeywordMatchCriteria>());
+
+    private KeywordMatchCriteria[] _criteria;
+
+    //
+    // Criteria index by criteria.
+    //
+    private IdentityHashMap<KeywordMatchCriteria, Integer> _index = 
+                        new IdentityHashMap<KeywordMatchCriteria, Integer>();
+
+    //
+    // Goto function. Outgoing edge labels of each node, sorted, and the
+    // node each leads to.
+    //
+    private char[][] _labels;
+    private int[][] _targets;
+
+    //
+    // Failure function.
+    //
+    private int[] _fail;
+
+    //
+    // Criteria indexes fired when each node is reached, including those
+    // of keywords which are suffixes of the node's keyword.
+    //
+    private int[][] _output;
+
+    /**
+     *
+     * Build the automaton.
+     *
+     * @param criteria  The criteria whose keywords to match.
+     *
+     */
+    public KeywordMatcher(List<KeywordMatchCriteria> criteria) {
+
+        _criteria = criteria.toArray(new KeywordMatchCriteria[0]);
+        for(int i = 0; i < _criteria.length; i++) {
+            _index.put(_criteria[i], i);
+        }
+
+        //
+        // Build the trie with growable per node edge maps.
+        //
+        List<TreeMap<Character, Integer>> edges = 
+                                new ArrayList<TreeMap<Character, Integer>>();
+        List<Set<Integer>> outputs = new ArrayList<Set<Integer>>();
+        edges.add(new TreeMap<Character, Integer>());
+        outputs.add(new TreeSet<Integer>());
+
+        for(int i = 0; i < _criteria.length; i++) {
+            //
+            // KeywordMatchCriteria rejects empty keywords, which match()
+            // would match everywhere.
+            //
+            for(String keyword: _criteria[i].getKeywords()) {
+                int node = 0;
+                for(int j = 0; j < keyword.length(); j++) {
+                    Character c = Character.valueOf(keyword.charAt(j));
+                    Integer next = edges.get(node).get(c);
+                    if(next == null) {
+                        next = edges.size();
+                        edges.add(new TreeMap<Character, Integer>());
+                        outputs.add(new TreeSet<Integer>());
+                        edges.get(node).put(c, next);
+                    }
+                    node = next;
+                }
+                outputs.get(node).add(i);
+            }
+        }
+
+        int nodes = edges.size();
+        _labels = new char[nodes][];
+        _targets = new int[nodes][];
+        for(int n = 0; n < nodes; n++) {
+            TreeMap<Character, Integer> map = edges.get(n);
+            _labels[n] = new char[map.size()];
+            _targets[n] = new int[map.size()];
+            int k = 0;
+            for(Map.Entry<Character, Integer> entry: map.entrySet()) {
+                _labels[n][k] = entry.getKey().charValue();
+                _targets[n][k] = entry.getValue().intValue();
+                k++;
+            }
+        }
+
+        //
+        // Failure links, breadth first, merging outputs along them.
+        //
+        _fail = new int[nodes];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for(int k = 0; k < _targets[0].length; k++) {
+            queue.add(_targets[0][k]);
+        }
+        while(!queue.isEmpty()) {
+            int node = queue.removeFirst();
+            for(int k = 0; k < _targets[node].length; k++) {
+                int child = _targets[node][k];
+                char c = _labels[node][k];
+                int f = _fail[node];
+                int next;
+                while((next = step(f, c)) == -1 && f != 0) {
+                    f = _fail[f];
+                }
+                _fail[child] = (next == -1 || next == child) ? 0 : next;
+                outputs.get(child).addAll(outputs.get(_fail[child]));
+                queue.add(child);
+            }
+        }
+
+        _output = new int[nodes][];
+        for(int n = 0; n < nodes; n++) {
+            Set<Integer> out = outputs.get(n);
+            _output[n] = new int[out.size()];
+            int k = 0;
+            for(Integer i: out) {
+                _output[n][k++] = i.intValue();
+            }
+        }
+    }
+
+    /**
+     *
+     * Scan a normalized text.
+     *
+     * @param text  The text, as returned by normalize() or getText().
+     *
+     * @return The indexes of the criteria which fired.
+     *
+     */
+    public BitSet match(String text) {
+        BitSet fired = new BitSet(_criteria.length);
+        if(text == null || _criteria.length == 0) {
+            return fired;
+        }
+        int node = 0;
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next;
+            while((next = step(node, c)) == -1 && node != 0) {
+                node = _fail[node];
+            }
+            node = next == -1 ? 0 : next;
+            for(int o: _output[node]) {
+                fired.set(o);
+            }
+        }
+        return fired;
+    }
+
+    /**
+     *
+     * Get the index of a criteria, as reported by match().
+     *
+     * @return The index, or -1 if the criteria is not in this automaton.
+     *
+     */
+    public int indexOf(CrawlerMatchCriteria criteria) {
+        Integer i = _index.get(criteria);
+        return i == null ? -1 : i.intValue();
+    }
+
+    public int size() { return _criteria.length; }
+
+    public KeywordMatchCriteria getCriteria(int i) { return _criteria[i]; }
+
+    /**
+     *
+     * Normalize a text or keyword for matching.
+     *
+     */
+    public static String normalize(String s) {
+        return s.toLowerCase();
+    }
+
+    /**
+     *
+     * Get the normalized text of a Thing to match keywords against.
+     * That is the body of a Comment or the selftext of a self post
+     * Submission.
+     *
+     * @return The text, or null if the Thing has none.
+     *
+     */
+    public static String getText(Thing thing) {
+        String text = null;
+        if(thing instanceof Comment) {
+            text = ((Comment)thing).getBody();
+        }
+        if(thing instanceof Submission) {
+            Submission submission = (Submission)thing;
+            if(submission.isSelfPost()) {
+                text = submission.getSelftext();
+            }
+        }
+        return text == null ? null : normalize(text);
+    }
+
+    private int step(int node, char c) {
+        int k = Arrays.binarySearch(_labels[node], c);
+        return k < 0 ? -1 : _targets[node][k];
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.jreddit.botkernel;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongBinaryOperator;
+
+/**
+ *
+ * Lock free latency histogram.
+ *
+ * Latencies are counted in power of two buckets of microseconds, each
+ * a LongAdder, so recording from many crawl threads never contends on
+ * a lock. Percentiles are the upper bound of the bucket they fall in,
+ * so are at most a factor of two high.
+ *
+ */
+public class LatencyHistogram {
+
+    //
+    // Bucket i counts latencies below 2^i microseconds and at least
+    // 2^(i-1). The last bucket takes everything above about an hour.
+    //
+    private static final int BUCKETS = 33;
+
+    private LongAdder[] _buckets = new LongAdder[BUCKETS];
+
+    private LongAdder _totalNanos = new LongAdder();
+
+    private LongAccumulator _maxNanos = new LongAccumulator(
+                                            new LongBinaryOperator() {
+        public long applyAsLong(long a, long b) {
+            return Math.max(a, b);
+        }
+    }, 0);
+
+    /**
+     *
+     * A point in time view of a histogram, in milliseconds.
+     *
+     */
+    public static class Snapshot {
+
+        private long _count;
+        private double _mean;
+        private double _p50;
+        private double _p95;
+        private double _p99;
+        private double _max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p95", "p99", "max"})
+        public Snapshot(long count,
+                        double mean,
+                        double p50,
+                        double p95,
+                        double p99,
+                        double max) {
+            _count = count;
+            _mean = mean;
+            _p50 = p50;
+            _p95 = p95;
+            _p99 = p99;
+            _max = max;
+        }
+
+        public long getCount() { return _count; }
+        public double getMean() { return _mean; }
+        public double getP50() { return _p50; }
+        public double getP95() { return _p95; }
+        public double getP99() { return _p99; }
+        public double getMax() { return _max; }
+
+        public String toString() {
+            return String.format(
+                "n %d mean %.1fms p50 %.1fms p95 %.1fms p99 %.1fms max %.1fms",
+                _count, _mean, _p50, _p95, _p99, _max);
+        }
+    }
+
+    public LatencyHistogram() {
+        for(int i = 0; i < BUCKETS; i++) {
+            _buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     *
+     * Record a latency.
+     *
+     * @param nanos The latency in nanoseconds, e.g. the difference of
+     *              two System.nanoTime() calls.
+     *
+     */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        _buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        _totalNanos.add(nanos);
+        _maxNanos.accumulate(nanos);
+    }
+
+    public Snapshot getSnapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            counts[i] = _buckets[i].sum();
+            count += counts[i];
+        }
+        double max = _maxNanos.get() / 1000000.0;
+        return new Snapshot(
+                    count,
+                    count == 0 ? 0 : _totalNanos.sum() / 1000000.0 / count,
+                    percentile(counts, count, 0.50, max),
+                    percentile(counts, count, 0.95, max),
+                    percentile(counts, count, 0.99, max),
+                    max);
+    }
+
+    public String toString() {
+        return getSnapshot().toString();
+    }
+
+    private static double percentile(   long[] counts,
+                                        long count,
+                                        double p,
+                                        double max) {
+        if(count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(p * count);
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+                //
+                // Upper bound of the bucket, but never above the max.
+                //
+                return Math.min(max, (1L << i) / 1000.0);
+            }
+        }
+        return max;
+    }
+
+}
@@ -0,0 +1,292 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+
+/**
+ *
+ * Bounded mailbox delivering crawler events to a listener
+ * asynchronously.
+ *
+ * The crawler puts events in the mailbox and carries on crawling. The
+ * listener's handleCrawlerEvent() is called from the mailbox's own
+ * executor, so a slow listener only delays its own events.
+ *
+ * The delivering thread is a daemon, and exits when the mailbox is 
+ * closed. The crawler closes its mailboxes when it is shut down.
+ *
+ * What happens when the mailbox is full depends on its overflow policy:
+ *
+ *      BLOCK       the crawler waits for room, as with synchronous
+ *                  delivery but with the mailbox as slack.
+ *      DROP_OLDEST the oldest queued event is dropped.
+ *      COALESCE    an event replaces a queued event of the same type 
+ *                  and criteria for the same Thing (by fullname). If
+ *                  there is none the oldest queued event is dropped.
+ *
+ */
+public class ListenerMailbox implements CrawlerListener {
+
+    //
+    // Overflow policies.
+    //
+    public static final int BLOCK       = 0;
+    public static final int DROP_OLDEST = 1;
+    public static final int COALESCE    = 2;
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private CrawlerListener _listener;
+
+    private int _capacity;
+
+    private int _policy;
+
+    private String _name;
+
+    private LinkedList<CrawlerEvent> _queue = new LinkedList<CrawlerEvent>();
+
+    private Lock _lock = new ReentrantLock();
+    private Condition _notEmpty = _lock.newCondition();
+    private Condition _notFull = _lock.newCondition();
+
+    private boolean _closed = false;
+
+    private ExecutorService _executor;
+
+    //
+    // Metrics
+    //
+    private LongAdder _delivered = new LongAdder();
+    private LongAdder _dropped = new LongAdder();
+    private LongAdder _coalesced = new LongAdder();
+    private LongAdder _blocked = new LongAdder();
+    private LongAdder _handlerNanos = new LongAdder();
+    private volatile long _maxHandlerNanos;
+    private volatile int _maxDepth;
+
+    /**
+     *
+     * Create a mailbox and start delivering from it.
+     *
+     * @param listener  The listener to deliver to.
+     * @param capacity  The maximum number of queued events.
+     * @param policy    The overflow policy, BLOCK, DROP_OLDEST or COALESCE.
+     * @param name      A name for the delivering thread.
+     *
+     */
+    public ListenerMailbox( CrawlerListener listener,
+                            int capacity,
+                            int policy,
+                            String name) {
+        _listener = listener;
+        _capacity = Math.max(1, capacity);
+        _policy = policy;
+        _name = name;
+
+        final ThreadFactory factory = 
+                        BotKernel.getBotKernel().getThreadFactory(name);
+        _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                //
+                // Never keep the JVM up for a listener.
+                //
+                Thread thread = factory.newThread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _executor.execute(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    public CrawlerListener getListener() { return _listener; }
+
+    /**
+     *
+     * Queue an event for the listener.
+     *
+     */
+    public void handleCrawlerEvent(CrawlerEvent event) {
+        _lock.lock();
+        try {
+            if(_closed) {
+                return;
+            }
+
+            if(_policy == COALESCE && coalesce(event)) {
+                _coalesced.increment();
+                return;
+            }
+
+            if(_queue.size() >= _capacity) {
+                if(_policy == BLOCK) {
+                    _blocked.increment();
+                    while(_queue.size() >= _capacity && !_closed) {
+                        _notFull.awaitUninterruptibly();
+                    }
+                    if(_closed) {
+                        return;
+                    }
+                } else {
+                    CrawlerEvent dropped = _queue.removeFirst();
+                    _dropped.increment();
+                    BotKernel.getBotKernel().log(
+                        ListenerMailbox.class, KernelLogger.WARN,
+                        "Mailbox %s full, dropped event for %s",
+                        _name, 
+                        dropped.getSource() == null ? 
+                            null : dropped.getSource().getName());
+                }
+            }
+
+            _queue.addLast(event);
+            if(_queue.size() > _maxDepth) {
+                _maxDepth = _queue.size();
+            }
+            _notEmpty.signal();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * Stop delivering. Queued events are discarded. Safe to call from
+     * the listener itself while it handles an event.
+     *
+     */
+    public void close() {
+        _lock.lock();
+        try {
+            _closed = true;
+            _queue.clear();
+            _notEmpty.signalAll();
+            _notFull.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+        _executor.shutdown();
+    }
+
+    public int getDepth() {
+        _lock.lock();
+        try {
+            return _queue.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() { return _maxDepth; }
+
+    public int getCapacity() { return _capacity; }
+
+    public long getDelivered() { return _delivered.sum(); }
+
+    public long getDropped() { return _dropped.sum(); }
+
+    public long getCoalesced() { return _coalesced.sum(); }
+
+    public long getBlocked() { return _blocked.sum(); }
+
+    /**
+     *
+     * Average time the listener took to handle an event, in millis.
+     *
+     */
+    public double getAverageHandlerMillis() {
+        long delivered = _delivered.sum();
+        if(delivered == 0) {
+            return 0;
+        }
+        return _handlerNanos.sum() / 1000000.0 / delivered;
+    }
+
+    public double getMaxHandlerMillis() {
+        return _maxHandlerNanos / 1000000.0;
+    }
+
+    public String toString() {
+        return _name +
+            " depth " + getDepth() + "/" + _capacity +
+            " max " + _maxDepth +
+            " delivered " + getDelivered() +
+            " dropped " + getDropped() +
+            " coalesced " + getCoalesced() +
+            " blocked " + getBlocked() +
+            " avg " + String.format("%.1f", getAverageHandlerMillis()) +
+            "ms max " + String.format("%.1f", getMaxHandlerMillis()) + "ms";
+    }
+
+    /**
+     *
+     * Replace a queued event of the same type and criteria for the same
+     * thing. Must hold _lock.
+     *
+     * @return true if the event replaced a queued one.
+     *
+     */
+    private boolean coalesce(CrawlerEvent event) {
+        if(event.getSource() == null) {
+            return false;
+        }
+        String name = event.getSource().getName();
+        if(name == null) {
+            return false;
+        }
+        ListIterator<CrawlerEvent> i = _queue.listIterator();
+        while(i.hasNext()) {
+            CrawlerEvent queued = i.next();
+            if( queued.getType() == event.getType() &&
+                queued.getCriteria() == event.getCriteria() &&
+                queued.getSource() != null &&
+                name.equals(queued.getSource().getName()) ) {
+                i.set(event);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        while(true) {
+            CrawlerEvent event;
+            _lock.lock();
+            try {
+                while(_queue.isEmpty() && !_closed) {
+                    _notEmpty.awaitUninterruptibly();
+                }
+                if(_closed) {
+                    return;
+                }
+                event = _queue.removeFirst();
+                _notFull.signal();
+            } finally {
+                _lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            try {
+                _listener.handleCrawlerEvent(event);
+            } catch(RuntimeException re) {
+                re.printStackTrace();
+                BotKernel.getBotKernel().log(
+                    "ERROR Listener " + _name + " caught " + re);
+            }
+            long nanos = System.nanoTime() - start;
+
+            _delivered.increment();
+            _handlerNanos.add(nanos);
+            if(nanos > _maxHandlerNanos) {
+                _maxHandlerNanos = nanos;
+            }
+        }
+    }
+
+}
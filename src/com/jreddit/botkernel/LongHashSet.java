@@ -0,0 +1,161 @@
+package com.jreddit.botkernel;
+
+/**
+ *
+ * A compact set of positive longs, such as fullnames decoded with
+ * Utils.fullnameToLong().
+ *
+ * Values live in a single open addressing array kept at most half
+ * full, so a member costs 16 to 32 bytes instead of a boxed Long in a
+ * HashSet entry, plus the table's minimum of 16 slots, 128 bytes.
+ *
+ * Not thread safe.
+ *
+ */
+public class LongHashSet {
+
+    //
+    // Open addressing table. 0 marks an empty slot.
+    //
+    private long[] _table;
+
+    private int _size;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     *
+     * @param capacity  The number of members expected.
+     *
+     */
+    public LongHashSet(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(8, capacity) * 2 - 1) << 1;
+        _table = new long[tableSize];
+    }
+
+    /**
+     *
+     * Add a value.
+     *
+     * @param value The value, which must be positive.
+     *
+     * @return true if the value was not already in the set.
+     *
+     */
+    public boolean add(long value) {
+        if(value <= 0) {
+            throw new IllegalArgumentException("Not positive: " + value);
+        }
+        int slot = find(_table, value);
+        if(_table[slot] == value) {
+            return false;
+        }
+        _table[slot] = value;
+        _size++;
+        if(_size * 2 > _table.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     *
+     * Remove a value.
+     *
+     * @return true if the value was in the set.
+     *
+     */
+    public boolean remove(long value) {
+        if(value <= 0) {
+            return false;
+        }
+        int slot = find(_table, value);
+        if(_table[slot] != value) {
+            return false;
+        }
+
+        //
+        // Shift later members of the probe run back into the hole, so
+        // lookups never stop early at it.
+        //
+        int mask = _table.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while(_table[next] != 0) {
+            int home = home(_table[next], mask);
+            if(((next - home) & mask) >= ((next - hole) & mask)) {
+                _table[hole] = _table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        _table[hole] = 0;
+        _size--;
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if(value <= 0) {
+            return false;
+        }
+        return _table[find(_table, value)] == value;
+    }
+
+    public int size() { return _size; }
+
+    /**
+     *
+     * Approximate memory used by this set, in bytes.
+     *
+     */
+    public long getMemory() { return 8L * _table.length; }
+
+    public void clear() {
+        java.util.Arrays.fill(_table, 0);
+        _size = 0;
+    }
+
+    private void grow() {
+        long[] old = _table;
+        _table = new long[old.length * 2];
+        for(long value: old) {
+            if(value != 0) {
+                _table[find(_table, value)] = value;
+            }
+        }
+    }
+
+    /**
+     *
+     * Call for each member, in no particular order.
+     *
+     */
+    public void forEach(Visitor visitor) {
+        for(long value: _table) {
+            if(value != 0) {
+                visitor.visit(value);
+            }
+        }
+    }
+
+    public interface Visitor {
+        public void visit(long value);
+    }
+
+    private static int home(long value, int mask) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private static int find(long[] table, long value) {
+        int mask = table.length - 1;
+        int slot = home(value, mask);
+        while(table[slot] != 0 && table[slot] != value) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+}
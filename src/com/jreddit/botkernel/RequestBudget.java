@@ -0,0 +1,263 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Kernel wide reddit API request budget.
+ *
+ * Every bot and crawler asks the budget before making a
+ * Submissions, Comments or Messages call. Requests are metered per
+ * account with a token bucket sized to reddit's per account limit, so
+ * crawlers, bots and the admin bot sharing credentials stay just under
+ * the limit together instead of bursting into it and stalling.
+ *
+ * Waiting requests are served by priority lane. A waiting admin command
+ * or reply always gets the next token before background crawl traffic.
+ *
+ */
+public class RequestBudget {
+
+    //
+    // Priority lanes, highest priority first.
+    //
+    public static final int ADMIN   = 0;    // Admin bot commands
+    public static final int REPLY   = 1;    // Bot replies
+    public static final int CRAWL   = 2;    // Background crawl traffic
+
+    private static final int LANES = 3;
+
+    //
+    // Default limit. Reddit allows 30 requests per minute per account,
+    // stay a little under it.
+    //
+    public static final int DEFAULT_REQUESTS   = 28;
+    public static final int DEFAULT_PERIOD     = 60;
+    public static final int DEFAULT_BURST      = 5;
+
+    private static RequestBudget _requestBudget = null;
+
+    //
+    // Buckets by username.
+    //
+    private Map<String, Bucket> _buckets = new HashMap<String, Bucket>();
+
+    private double _tokensPerNano;
+
+    private int _burst;
+
+    /**
+     *
+     * Get the kernel wide request budget.
+     *
+     */
+    public static synchronized RequestBudget getRequestBudget() {
+        if(_requestBudget == null) {
+            _requestBudget = new RequestBudget();
+        }
+        return _requestBudget;
+    }
+
+    private RequestBudget() {
+        setLimit(DEFAULT_REQUESTS, DEFAULT_PERIOD, DEFAULT_BURST);
+    }
+
+    /**
+     *
+     * Set the per account limit.
+     * Applies to accounts seen after this call.
+     *
+     * @param requests  Number of requests allowed per period.
+     * @param period    The period in seconds.
+     * @param burst     Maximum number of requests which can be made
+     *                  back to back after a quiet spell.
+     *
+     */
+    public synchronized void setLimit(int requests, int period, int burst) {
+        _tokensPerNano = (double)requests / TimeUnit.SECONDS.toNanos(period);
+        _burst = Math.max(1, burst);
+    }
+
+    /**
+     *
+     * Wait until the given account may make one more request.
+     *
+     * @param user      The account making the request.
+     * @param priority  The lane of the request, ADMIN, REPLY or CRAWL.
+     *
+     * @throws InterruptedIOException if interrupted while waiting.
+     *
+     */
+    public void acquire(User user, int priority)
+                                        throws InterruptedIOException {
+        getBucket(user).acquire(priority);
+    }
+
+    /**
+     *
+     * Hold all requests for an account after reddit reported that
+     * it is over the limit anyway.
+     *
+     * @param user      The account which was rate limited.
+     * @param seconds   The retry time reddit asked for.
+     *
+     */
+    public void penalize(User user, int seconds) {
+        getBucket(user).penalize(seconds);
+    }
+
+    /**
+     *
+     * The number of requests currently waiting for the account.
+     *
+     */
+    public int getWaiting(User user) {
+        return getBucket(user).getWaiting();
+    }
+
+    private synchronized Bucket getBucket(User user) {
+        String key = user.getUsername();
+        if(key == null) {
+            key = "";
+        }
+        Bucket bucket = _buckets.get(key);
+        if(bucket == null) {
+            bucket = new Bucket(_tokensPerNano, _burst);
+            _buckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     *
+     * Token bucket for one account.
+     *
+     */
+    private static class Bucket {
+
+        private Lock _lock = new ReentrantLock();
+        private Condition _changed = _lock.newCondition();
+
+        private double _tokensPerNano;
+        private int _burst;
+
+        private double _tokens;
+        private long _lastRefill;
+
+        //
+        // No requests before this time (nanos), after a rate limit.
+        //
+        private long _blockedUntil;
+
+        //
+        // Number of waiters per lane.
+        //
+        private int[] _waiting = new int[LANES];
+
+        Bucket(double tokensPerNano, int burst) {
+            _tokensPerNano = tokensPerNano;
+            _burst = burst;
+            _tokens = burst;
+            _lastRefill = System.nanoTime();
+            _blockedUntil = _lastRefill;
+        }
+
+        void acquire(int priority) throws InterruptedIOException {
+            _lock.lock();
+            try {
+                _waiting[priority]++;
+                try {
+                    while(true) {
+                        long now = System.nanoTime();
+                        refill(now);
+
+                        long wait;
+                        if(now - _blockedUntil < 0) {
+                            wait = _blockedUntil - now;
+                        } else if(higherWaiting(priority)) {
+                            wait = Long.MAX_VALUE;
+                        } else if(_tokens >= 1) {
+                            _tokens -= 1;
+                            return;
+                        } else {
+                            wait = (long)Math.ceil(
+                                            (1 - _tokens) / _tokensPerNano);
+                        }
+
+                        if(wait == Long.MAX_VALUE) {
+                            _changed.await();
+                        } else {
+                            _changed.awaitNanos(wait);
+                        }
+                    }
+                } finally {
+                    _waiting[priority]--;
+                    _changed.signalAll();
+                }
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                            "Interrupted waiting for request budget.");
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        void penalize(int seconds) {
+            _lock.lock();
+            try {
+                long until = System.nanoTime() +
+                                    TimeUnit.SECONDS.toNanos(seconds);
+                if(until - _blockedUntil > 0) {
+                    _blockedUntil = until;
+                }
+                //
+                // Start refilling from empty only once the block is over.
+                //
+                _tokens = 0;
+                _lastRefill = _blockedUntil;
+                _changed.signalAll();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        int getWaiting() {
+            _lock.lock();
+            try {
+                int total = 0;
+                for(int w: _waiting) {
+                    total += w;
+                }
+                return total;
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        private boolean higherWaiting(int priority) {
+            for(int i = 0; i < priority; i++) {
+                if(_waiting[i] > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void refill(long now) {
+            if(now - _lastRefill <= 0) {
+                return;
+            }
+            _tokens = Math.min(
+                        _burst,
+                        _tokens + (now - _lastRefill) * _tokensPerNano);
+            _lastRefill = now;
+        }
+    }
+
+}
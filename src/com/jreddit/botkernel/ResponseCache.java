@@ -0,0 +1,345 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Kernel wide cache of reddit API responses.
+ *
+ * Crawlers covering the same subreddits share their listings and
+ * comment trees through this cache instead of each fetching them.
+ *
+ *      listings        keyed by account, subreddit, listing type, limit
+ *                      and the fullnames a page is listed before or after.
+ *      comment trees   keyed by account, submission fullname and comment
+ *                      count, so a tree is fetched again once it has grown.
+ *
+ * Responses depend on the account, which may be shadowbanned, see NSFW
+ * or be a moderator, so they are only shared between crawlers logged in
+ * as the same user.
+ *
+ * Entries expire after a time to live, and the least recently used
+ * entries are evicted beyond a maximum number of entries.
+ *
+ * Loading is single flight. A request for a key already being loaded
+ * waits for that load rather than making a second identical request.
+ * A rate limit hit by that load is reported to the waiters as a plain
+ * IOException, so only the request actually made is penalized.
+ *
+ */
+public class ResponseCache {
+
+    public static final int DEFAULT_TTL         = 60;
+    public static final int DEFAULT_CAPACITY    = 1000;
+
+    private static ResponseCache _responseCache = null;
+
+    /**
+     *
+     * Loads a response on a cache miss.
+     *
+     */
+    public interface Loader<T> {
+        public T load() throws IOException;
+    }
+
+    private static class Entry {
+        Object value;
+        long expires;
+
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    //
+    // Cached responses in least recently used order.
+    //
+    private LinkedHashMap<String, Entry> _entries =
+                        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    //
+    // Loads in progress. Guarded by this, with _entries, so a key is
+    // either cached or being loaded by exactly one request.
+    //
+    private HashMap<String, FutureTask<Object>> _loading =
+                        new HashMap<String, FutureTask<Object>>();
+
+    private long _ttl;
+
+    private int _capacity;
+
+    //
+    // Metrics
+    //
+    private LongAdder _hits = new LongAdder();
+    private LongAdder _misses = new LongAdder();
+    private LongAdder _shared = new LongAdder();
+    private LongAdder _expirations = new LongAdder();
+    private LongAdder _evictions = new LongAdder();
+
+    /**
+     *
+     * Get the kernel wide response cache.
+     *
+     */
+    public static synchronized ResponseCache getResponseCache() {
+        if(_responseCache == null) {
+            _responseCache = new ResponseCache();
+        }
+        return _responseCache;
+    }
+
+    private ResponseCache() {
+        setLimit(DEFAULT_TTL, DEFAULT_CAPACITY);
+    }
+
+    /**
+     *
+     * Set the time to live and the maximum number of entries.
+     * A time to live or capacity of 0 disables caching, but identical
+     * concurrent requests are still made once.
+     *
+     * @param ttl       Seconds a response is served from the cache.
+     * @param capacity  Maximum number of cached responses.
+     *
+     */
+    public synchronized void setLimit(int ttl, int capacity) {
+        _ttl = TimeUnit.SECONDS.toNanos(Math.max(0, ttl));
+        _capacity = Math.max(0, capacity);
+        evict();
+    }
+
+    /**
+     *
+     * Get a subreddit listing.
+     *
+     * @param user      The account the listing is fetched as.
+     * @param loader    Fetches the listing on a miss.
+     *
+     */
+    public List<Submission> getSubmissions(
+                                User user,
+                                String subreddit,
+                                Submissions.ListingType listingType,
+                                int limit,
+                                Loader<List<Submission>> loader)
+                                                    throws IOException {
+        return getSubmissions(
+                    user, subreddit, listingType, limit, null, null, loader);
+    }
+
+    /**
+     *
+     * Get a page of a subreddit listing.
+     *
+     * @param user      The account the listing is fetched as.
+     * @param before    The fullname the page is newer than, or null.
+     * @param after     The fullname the page is older than, or null.
+     * @param loader    Fetches the listing on a miss.
+     *
+     */
+    @SuppressWarnings("unchecked")
+    public List<Submission> getSubmissions(
+                                User user,
+                                String subreddit,
+                                Submissions.ListingType listingType,
+                                int limit,
+                                String before,
+                                String after,
+                                Loader<List<Submission>> loader)
+                                                    throws IOException {
+        return (List<Submission>)get(
+                        "S " + account(user) + " " +
+                            subreddit.toLowerCase() + " " +
+                            listingType.name() + " " + limit +
+                            (before != null ? " before " + before : "") +
+                            (after != null ? " after " + after : ""),
+                        loader);
+    }
+
+    /**
+     *
+     * Get the comment tree of a submission.
+     *
+     * @param user      The account the comments are fetched as.
+     * @param loader    Fetches the comments on a miss.
+     *
+     */
+    @SuppressWarnings("unchecked")
+    public List<Comment> getComments(   User user,
+                                        Submission submission,
+                                        Loader<List<Comment>> loader)
+                                                    throws IOException {
+        return (List<Comment>)get(
+                        "C " + account(user) + " " +
+                            submission.getName() + " " +
+                            submission.getNumComments(),
+                        loader);
+    }
+
+    public long getHits() { return _hits.sum(); }
+
+    public long getMisses() { return _misses.sum(); }
+
+    /**
+     *
+     * The number of requests which waited for an identical request
+     * already being loaded.
+     *
+     */
+    public long getShared() { return _shared.sum(); }
+
+    public long getExpirations() { return _expirations.sum(); }
+
+    public long getEvictions() { return _evictions.sum(); }
+
+    /**
+     *
+     * The fraction of requests answered without a request to reddit.
+     *
+     */
+    public double getHitRatio() {
+        long saved = _hits.sum() + _shared.sum();
+        long total = saved + _misses.sum();
+        return total == 0 ? 0 : (double)saved / total;
+    }
+
+    public synchronized int size() { return _entries.size(); }
+
+    public String toString() {
+        return "entries " + size() + "/" + _capacity +
+                " hits " + getHits() +
+                " shared " + getShared() +
+                " misses " + getMisses() +
+                " hit ratio " + String.format("%.3f", getHitRatio()) +
+                " expired " + getExpirations() +
+                " evicted " + getEvictions();
+    }
+
+    private Object get(String key, final Loader<?> loader)
+                                                    throws IOException {
+
+        FutureTask<Object> task;
+        boolean shared;
+
+        //
+        // Look the key up and claim its load in one step, so a load
+        // finishing in between can't be repeated by a second request.
+        //
+        synchronized(this) {
+            Entry entry = _entries.get(key);
+            if(entry != null) {
+                if(System.nanoTime() - entry.expires < 0) {
+                    _hits.increment();
+                    return entry.value;
+                }
+                _entries.remove(key);
+                _expirations.increment();
+            }
+
+            task = _loading.get(key);
+            if(task == null) {
+                task = new FutureTask<Object>(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        return loader.load();
+                    }
+                });
+                _loading.put(key, task);
+                _misses.increment();
+                shared = false;
+            } else {
+                _shared.increment();
+                shared = true;
+            }
+        }
+
+        if(shared) {
+            return awaitShared(task);
+        }
+
+        try {
+            task.run();
+            Object value = await(task);
+            put(key, value);
+            return value;
+        } finally {
+            //
+            // Removed after the put, so while the response is fresh the
+            // key is always either cached or being loaded.
+            //
+            synchronized(this) {
+                _loading.remove(key);
+            }
+        }
+    }
+
+    private synchronized void put(String key, Object value) {
+        if(_ttl == 0 || _capacity == 0) {
+            return;
+        }
+        _entries.put(key, new Entry(value, System.nanoTime() + _ttl));
+        evict();
+    }
+
+    private synchronized void evict() {
+        Iterator<Entry> i = _entries.values().iterator();
+        while(_entries.size() > _capacity && i.hasNext()) {
+            i.next();
+            i.remove();
+            _evictions.increment();
+        }
+    }
+
+    /**
+     *
+     * Wait for a load made by another request. A rate limit it hit is
+     * rethrown as a plain IOException, so the waiter fails the same way
+     * without penalizing its account a second time for one request.
+     *
+     */
+    private static Object awaitShared(FutureTask<Object> task)
+                                                    throws IOException {
+        try {
+            return await(task);
+        } catch(RateLimitException rle) {
+            throw new IOException(
+                        "Shared request was rate limited: " +
+                            rle.getMessage(), rle);
+        }
+    }
+
+    private static String account(User user) {
+        return user.getUsername() == null ?
+                    "" : user.getUsername().toLowerCase();
+    }
+
+    private static Object await(FutureTask<Object> task) throws IOException {
+        try {
+            return task.get();
+        } catch(ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                            "Interrupted waiting for a response.");
+        }
+    }
+
+}
@@ -17,6 +17,12 @@ public class SampleBot extends BaseBot implements Bot, CrawlerListener {
     private static final String BOT_NAME    = "SAMPLE_BOT";
     private static final String CONFIG_FILE = "scratch/samplebot.properties";
     private static final String REPLIES_FILE = "scratch/samplebot.replies";
+    private static final String SEEN_FILE   = "scratch/samplebot.seen";
+
+    //
+    // Seconds between attempts to send replies which were rate limited.
+    //
+    private static final int RETRY_INTERVAL = 60;
 
     /**
      *
@@ -40,13 +46,23 @@ public class SampleBot extends BaseBot implements Bot, CrawlerListener {
      */
     private Crawler _crawler;
 
+    private CrawlerMatchCriteria _criteria;
+
     /**
      *
      *  A list of comment we have replied to. 
      *  To keep track, so we don't reply to them again.
      *
      */
-    private Properties _repliedComments = new Properties();
+    private SeenIdLedger _repliedComments;
+
+    /**
+     *
+     *  Things whose reply was rate limited, by fullname, to reply to
+     *  again from run().
+     *
+     */
+    private Map<String, Thing> _pending = new LinkedHashMap<String, Thing>();
 
     /**
      *
@@ -79,21 +95,18 @@ public class SampleBot extends BaseBot implements Bot, CrawlerListener {
             in.close();
 
             log("Loading replied comments...");
-            _repliedComments = new Properties();
-            if( (new File(REPLIES_FILE)).exists() ) {
-                in = new FileInputStream(REPLIES_FILE);
-                _repliedComments.load(in);
-                in.close();
-            }
+            _repliedComments = openSeenIds(
+                            SEEN_FILE, REPLIES_FILE, getSeenIdsExpected(props));
 
             String username = props.getProperty("username");
             String password = props.getProperty("password");
 
             _subreddit = props.getProperty("subreddit");
 
-            _user = new User( username, password );
+            _user = SessionManager.getSessionManager().getUser(
+                                                        username, password);
             
-            _user.connect();
+            SessionManager.getSessionManager().connect(_user);
 
         } catch(IOException ioe) {
             ioe.printStackTrace();
@@ -133,60 +146,23 @@ public class SampleBot extends BaseBot implements Bot, CrawlerListener {
         
         //
         // Register ourselves with the Crawler, so we will get called
-        // if any match criteria are met.
+        // if any match criteria are met. Replying is slow, so take events
+        // through a mailbox rather than holding up the crawl. Every match
+        // must be answered, and a matched comment is not matched again,
+        // so a full mailbox holds up the crawl rather than drop events.
         //
-        _crawler.addListener(this);
-
-        CrawlerMatchCriteria criteria = new CrawlerMatchCriteria() {
-
-                public boolean match(Thing thing) {
-
-                    String body = null;
-
-                    //
-                    // The "Thing" we are matching against could either be
-                    // a Comment, or it could be a Submission possibly
-                    // a Submission with selftext. We'll try to match against
-                    // either of those cases.
-                    //
-
-                    if(thing instanceof Comment) {
-                        Comment comment = (Comment)thing;
-                        if(comment.getBody() != null) {
-                            body = ((Comment)comment).getBody().toLowerCase();
-                        }
-                    }
-   
-                    if(thing instanceof Submission) {
-                        Submission submission = (Submission)thing;
-                        if( submission.isSelfPost() &&
-                            submission.getSelftext() != null) {
-
-                            body = submission.getSelftext().toLowerCase();
-                        }
-                    }
-                    
-                    if(body == null) {
-                        return false;
-                    }
-
-                    if( body.indexOf("samplebot say hello") != -1 ) {
-                        return true;
-                    }
+        _crawler.addListener(this, ListenerMailbox.BLOCK, 100);
 
-                    return false;
-                }
-
-                public CrawlerListener getCrawlerListener() {
-                    return SampleBot.this;
-                }
-
-            };
+        //
+        // Match comments, and self posts, saying hello to us.
+        // Matching ignores case.
+        //
+        _criteria = new KeywordMatchCriteria(this, "samplebot say hello");
 
         //
         // Add our match criteria to the crawler.
         //
-        _crawler.addMatchCriteria(criteria);
+        _crawler.addMatchCriteria(_criteria);
 
         //
         // Register the crawler with the bot kernel.
@@ -210,26 +186,28 @@ public class SampleBot extends BaseBot implements Bot, CrawlerListener {
                 // for adding.
                 //
                 log("Removing crawler...");
+                _crawler.removeMatchCriteria(_criteria);
+                _crawler.removeListener(this);
                 BotKernel.getBotKernel().removeCrawler(_crawler);
 
                 //
                 // Save replies
                 //
                 log("Saving replied IDs...");
-                saveReplies();
+                try {
+                    _repliedComments.close();
+                } catch(IOException ioe) {
+                    log("Error saving replied IDs. " + ioe.getMessage());
+                }
                 return;
             }
 
             //
-            // Check for stuff to do here.
-            // For this example, we do nothing.
+            // Reply to things we were rate limited on.
             //
-            log("SampleBot sleeping ...");
+            retryPending();
 
-            //
-            // Sleep for 30 seconds.
-            //
-            sleep(60 * 60);
+            sleep(RETRY_INTERVAL);
         }
     }
 
@@ -250,7 +228,7 @@ public class SampleBot extends BaseBot implements Bot, CrawlerListener {
         //
         // Make sure we haven't already replied to this.
         //
-        if(_repliedComments.containsKey(thing.getName())) {
+        if(_repliedComments.contains(thing.getName())) {
             log("Ignoring already replied comment: " + thing.getName() );
             return;
         }
@@ -281,36 +259,74 @@ public class SampleBot extends BaseBot implements Bot, CrawlerListener {
             return;
         }
 
+        reply(thing);
+    }
+
+    private void retryPending() {
+        List<Thing> things;
+        synchronized(_pending) {
+            things = new ArrayList<Thing>(_pending.values());
+            _pending.clear();
+        }
+        if(things.size() > 0) {
+            log("Retrying " + things.size() + " rate limited replies.");
+        }
+        for(Thing thing: things) {
+            if(_shutdown) {
+                return;
+            }
+            if(!_repliedComments.contains(thing.getName())) {
+                reply(thing);
+            }
+        }
+    }
+
+    private void reply(Thing thing) {
+
         String text = "Hello " + thing.getAuthor() + " to you too!";
 
         try { 
 
+            RequestBudget.getRequestBudget().acquire(
+                                            _user, RequestBudget.REPLY);
             Comments.comment(_user, thing, text);
 
             //
             // Let ourselves know that we have replied to this comment. 
             //
-            _repliedComments.put(thing.getName(), "");
+            markAsReplied(thing);
+
+        } catch(RateLimitException rle) {
+            log("SampleBot rate limited for " + rle.getRetryTime() + "s");
+            RequestBudget.getRequestBudget().penalize(
+                                            _user, rle.getRetryTime());
 
+            //
+            // The crawler will not match this again, so it is up to us 
+            // to reply later.
+            //
+            synchronized(_pending) {
+                _pending.put(thing.getName(), thing);
+            }
+            return;
         } catch(IOException ioe) {
             ioe.printStackTrace();
             log("SampleBot caught: " + ioe);
+            if(SessionManager.isAuthError(ioe)) {
+                SessionManager.getSessionManager().invalidate(_user);
+            }
 
             //
             // Mark message as read so we don't keep replying to it.
             //
-            _repliedComments.put(thing.getName(), "");
+            markAsReplied(thing);
         }
-
-        saveReplies(); 
     }
 
 
-    private void saveReplies() {
+    private void markAsReplied(Thing thing) {
         try {
-            FileOutputStream fos = new FileOutputStream(REPLIES_FILE); 
-            _repliedComments.store(fos, null); 
-            fos.close();
+            _repliedComments.add(thing.getName());
         } catch(IOException ioe) {
             ioe.printStackTrace();
             log("Error saving replied IDs. " + ioe.getMessage());
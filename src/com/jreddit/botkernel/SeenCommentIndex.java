@@ -0,0 +1,171 @@
+package com.jreddit.botkernel;
+
+import java.util.*;
+
+/**
+ *
+ * Remembers which comments of each submission a crawler has already
+ * run its match criteria against.
+ *
+ * When a submission gains comments the crawler still fetches the whole 
+ * comment tree, but only comments not seen before are matched and can
+ * produce CRAWLER_MATCH events.
+ *
+ * Comment fullnames are kept decoded in a LongHashSet per submission.
+ * Both the total number of remembered comments and the number of
+ * submissions are bounded, the latter by default to the comment count
+ * cache capacity. When over either bound, the least recently crawled
+ * submissions are forgotten, and their comments would simply be matched
+ * again. Each submission costs at least a 16 slot table, 128 bytes, and
+ * each comment 16 to 32 bytes, see LongHashSet.
+ *
+ * A submission's set is only added to the index, and accounted for, by
+ * update() once its comments have been checked, so a fetch that fails
+ * leaves nothing behind. The total counts each set at its size when
+ * last updated, so sets evicted or replaced while in use cannot make
+ * it drift.
+ *
+ */
+public class SeenCommentIndex {
+
+    public static final int DEFAULT_CAPACITY = 1000000;
+
+    public static final int DEFAULT_MAX_SUBMISSIONS = 
+                                        CommentCountCache.DEFAULT_CAPACITY;
+
+    //
+    // Members of the table a new submission's set starts with.
+    //
+    private static final int INITIAL_COMMENTS = 8;
+
+    private int _capacity;
+
+    private int _maxSubmissions;
+
+    private static class Entry {
+        LongHashSet set;
+
+        // Size of the set counted in _total.
+        int counted;
+
+        Entry(LongHashSet set) {
+            this.set = set;
+        }
+    }
+
+    //
+    // Seen comments by decoded submission fullname, least recently
+    // crawled first.
+    //
+    private LinkedHashMap<Long, Entry> _seen = 
+                        new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    //
+    // Total number of comments remembered, the sum of counted.
+    //
+    private long _total;
+
+    private long _evictions;
+
+    /**
+     *
+     * @param capacity          The maximum number of comments remembered
+     *                          over all submissions.
+     * @param maxSubmissions    The maximum number of submissions.
+     *
+     */
+    public SeenCommentIndex(int capacity, int maxSubmissions) {
+        _capacity = capacity;
+        _maxSubmissions = Math.max(1, maxSubmissions);
+    }
+
+    /**
+     *
+     * Set the maximum number of submissions remembered. Takes effect on
+     * the next update().
+     *
+     */
+    public synchronized void setMaxSubmissions(int maxSubmissions) {
+        _maxSubmissions = Math.max(1, maxSubmissions);
+    }
+
+    /**
+     *
+     * Get the set of already seen comments of a submission, or a new
+     * empty set not yet in the index.
+     *
+     * The caller must synchronize on the returned set while using it,
+     * and must pass it to update() when done adding to it.
+     *
+     * @param submission    The decoded submission fullname.
+     *
+     */
+    public synchronized LongHashSet get(long submission) {
+        Entry entry = _seen.get(Long.valueOf(submission));
+        if(entry == null) {
+            return new LongHashSet(INITIAL_COMMENTS);
+        }
+        return entry.set;
+    }
+
+    /**
+     *
+     * Account for comments added to a submission's set, and forget the
+     * least recently crawled submissions if over capacity.
+     *
+     * A set not in the index, new or evicted while in use, is added.
+     * A set replaced by another one for the same submission while in
+     * use is dropped.
+     *
+     * @param submission    The decoded submission fullname.
+     * @param set           The set from get(), which the caller must
+     *                      not hold the lock of.
+     *
+     */
+    public synchronized void update(long submission, LongHashSet set) {
+        int size;
+        synchronized(set) {
+            size = set.size();
+        }
+
+        Long key = Long.valueOf(submission);
+        Entry entry = _seen.get(key);
+        if(entry == null) {
+            if(size == 0) {
+                return;
+            }
+            entry = new Entry(set);
+            _seen.put(key, entry);
+        } else if(entry.set != set) {
+            return;
+        }
+        _total += size - entry.counted;
+        entry.counted = size;
+
+        Iterator<Map.Entry<Long, Entry>> i = _seen.entrySet().iterator();
+        while(  (_total > _capacity || _seen.size() > _maxSubmissions) && 
+                i.hasNext() ) {
+            Map.Entry<Long, Entry> next = i.next();
+            if(next.getKey().longValue() == submission) {
+                // Never evict the submission just crawled.
+                continue;
+            }
+            _total -= next.getValue().counted;
+            _evictions++;
+            i.remove();
+        }
+    }
+
+    public synchronized int getSubmissions() { return _seen.size(); }
+
+    public synchronized long getComments() { return _total; }
+
+    public synchronized long getEvictions() { return _evictions; }
+
+    public synchronized String toString() {
+        return "submissions " + _seen.size() + "/" + _maxSubmissions +
+               " comments " + _total + "/" + _capacity +
+               " evictions " + _evictions;
+    }
+
+}
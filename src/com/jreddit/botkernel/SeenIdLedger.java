@@ -0,0 +1,455 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ *
+ * A durable set of reddit fullnames, e.g. the comments or messages a bot
+ * has already replied to.
+ *
+ * Fullnames are kept decoded (see Utils.fullnameToLong()) in a
+ * LongHashSet, optionally fronted by a Bloom filter so most lookups of
+ * ids never seen do not touch the set. On disk the set is an append
+ * only log of 8 byte records after a header: a positive record adds an
+ * id, a negative one removes it. Each change appends one record, so it
+ * costs the same however many ids are stored.
+ *
+ * Records are written to the file as they happen, so they survive the
+ * process being killed. They are forced to disk in batches: at once if
+ * the last force was more than syncMillis ago, otherwise after
+ * syncEvery changes, so a burst of replies costs one fsync. A crash of
+ * the machine can lose the last unforced batch. Call sync() to force.
+ *
+ * When removals make the log more than twice the size of the set, it is
+ * compacted into a new file holding only the set, which then replaces
+ * the log.
+ *
+ * A ledger opened without a file is kept in memory only.
+ *
+ */
+public class SeenIdLedger {
+
+    private static final long MAGIC = 0x424b5345454e3031L;  // "BKSEEN01"
+
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 8;
+
+    //
+    // Records beyond the live set allowed before compacting, on top of
+    // the size of the set.
+    //
+    private static final int COMPACT_SLACK = 4096;
+
+    public static final int DEFAULT_SYNC_EVERY = 64;
+    public static final int DEFAULT_SYNC_MILLIS = 1000;
+
+    //
+    // Bloom filter bits per expected id, and hash functions.
+    //
+    private static final int BLOOM_BITS = 10;
+    private static final int BLOOM_HASHES = 3;
+
+    private File _file;
+
+    private FileChannel _channel;
+
+    private ByteBuffer _record = ByteBuffer.allocate(RECORD_SIZE);
+
+    //
+    // Records in the log, not counting the header.
+    //
+    private long _records;
+
+    private LongHashSet _ids = new LongHashSet();
+
+    //
+    // Optional Bloom filter, null if not used.
+    //
+    private long[] _bloom = null;
+    private int _bloomExpected = 0;
+
+    private int _syncEvery = DEFAULT_SYNC_EVERY;
+    private int _syncMillis = DEFAULT_SYNC_MILLIS;
+    private int _unsynced = 0;
+    private long _lastSync = 0;
+
+    private long _syncs;
+    private long _compactions;
+
+    /**
+     *
+     * Open a ledger, creating the file if needed.
+     *
+     * @param filename  The file, or null to keep the ledger in memory.
+     *
+     */
+    public SeenIdLedger(String filename) throws IOException {
+        if(filename != null) {
+            _file = new File(filename);
+            open();
+        }
+    }
+
+    /**
+     *
+     * Set how changes are batched before being forced to disk.
+     *
+     * @param every     Force after this many changes.
+     * @param millis    Force at once if the last force was longer ago.
+     *
+     */
+    public synchronized void setSync(int every, int millis) {
+        _syncEvery = Math.max(1, every);
+        _syncMillis = Math.max(0, millis);
+    }
+
+    /**
+     *
+     * Front the set with a Bloom filter sized for a number of ids. It is
+     * rebuilt larger on compaction if the set outgrows it.
+     *
+     */
+    public synchronized void setBloomFilter(int expected) {
+        _bloomExpected = Math.max(expected, _ids.size());
+        buildBloom();
+    }
+
+    /**
+     *
+     * Check for a fullname.
+     *
+     */
+    public synchronized boolean contains(String fullname) {
+        return contains(Utils.fullnameToLong(fullname));
+    }
+
+    public synchronized boolean contains(long id) {
+        if(id <= 0) {
+            return false;
+        }
+        if(_bloom != null && !bloomContains(id)) {
+            return false;
+        }
+        return _ids.contains(id);
+    }
+
+    /**
+     *
+     * Add a fullname.
+     *
+     * @return true if it was not already in the ledger.
+     *
+     */
+    public synchronized boolean add(String fullname) throws IOException {
+        long id = Utils.fullnameToLong(fullname);
+        if(id <= 0) {
+            throw new IllegalArgumentException("Not a fullname: " + fullname);
+        }
+        return add(id);
+    }
+
+    public synchronized boolean add(long id) throws IOException {
+        if(!_ids.add(id)) {
+            return false;
+        }
+        if(_bloom != null) {
+            bloomAdd(id);
+        }
+        append(id);
+        return true;
+    }
+
+    /**
+     *
+     * Remove a fullname.
+     *
+     * @return true if it was in the ledger.
+     *
+     */
+    public synchronized boolean remove(String fullname) throws IOException {
+        return remove(Utils.fullnameToLong(fullname));
+    }
+
+    public synchronized boolean remove(long id) throws IOException {
+        if(!_ids.remove(id)) {
+            return false;
+        }
+        append(-id);
+        if(_records > 2L * _ids.size() + COMPACT_SLACK) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     *
+     * Remove everything. Does nothing, and forces nothing to disk, if
+     * the ledger is already empty.
+     *
+     */
+    public synchronized void clear() throws IOException {
+        if(_ids.size() == 0 && _records == 0) {
+            return;
+        }
+        _ids.clear();
+        if(_bloom != null) {
+            Arrays.fill(_bloom, 0);
+        }
+        if(_channel != null) {
+            _channel.truncate(HEADER_SIZE);
+            _channel.position(HEADER_SIZE);
+            _records = 0;
+            force();
+        }
+    }
+
+    public synchronized int size() { return _ids.size(); }
+
+    /**
+     *
+     * Force changes to disk.
+     *
+     */
+    public synchronized void sync() throws IOException {
+        if(_channel != null && _unsynced > 0) {
+            force();
+        }
+    }
+
+    /**
+     *
+     * Force changes to disk and close the file. The ledger is not
+     * usable afterwards.
+     *
+     */
+    public synchronized void close() throws IOException {
+        if(_channel != null) {
+            sync();
+            _channel.close();
+            _channel = null;
+        }
+    }
+
+    public synchronized String toString() {
+        return "ids " + _ids.size() +
+               " records " + _records +
+               " syncs " + _syncs +
+               " compactions " + _compactions +
+               (_bloom == null ? "" : " bloom " + (_bloom.length * 64) +
+                                      " bits") +
+               (_file == null ? " (memory)" : " " + _file);
+    }
+
+    private void append(long record) throws IOException {
+        if(_channel == null) {
+            return;
+        }
+        _record.clear();
+        _record.putLong(record);
+        _record.flip();
+        while(_record.hasRemaining()) {
+            _channel.write(_record);
+        }
+        _records++;
+        _unsynced++;
+
+        long now = System.currentTimeMillis();
+        if(_unsynced >= _syncEvery || now - _lastSync >= _syncMillis) {
+            force();
+        }
+    }
+
+    private void force() throws IOException {
+        _channel.force(false);
+        _unsynced = 0;
+        _lastSync = System.currentTimeMillis();
+        _syncs++;
+    }
+
+    /**
+     *
+     * Open the log and replay it. A record torn by a crash at the end
+     * of the file is dropped.
+     *
+     */
+    private void open() throws IOException {
+        if(_file.getParentFile() != null) {
+            _file.getParentFile().mkdirs();
+        }
+        _channel = FileChannel.open(_file.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+
+        long length = _channel.size();
+        if(length < HEADER_SIZE) {
+            _channel.truncate(0);
+            writeHeader(_channel);
+            _channel.force(true);
+            _records = 0;
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        _channel.position(0);
+        readFully(buffer, HEADER_SIZE);
+        if(buffer.getLong() != MAGIC) {
+            _channel.close();
+            _channel = null;
+            throw new IOException("Not a seen id ledger: " + _file);
+        }
+
+        _records = (length - HEADER_SIZE) / RECORD_SIZE;
+        long remaining = _records * RECORD_SIZE;
+        while(remaining > 0) {
+            int chunk = (int)Math.min(buffer.capacity(), remaining);
+            readFully(buffer, chunk);
+            while(buffer.hasRemaining()) {
+                long record = buffer.getLong();
+                if(record > 0) {
+                    _ids.add(record);
+                } else if(record < 0) {
+                    _ids.remove(-record);
+                }
+            }
+            remaining -= chunk;
+        }
+
+        long end = HEADER_SIZE + _records * RECORD_SIZE;
+        if(end != length) {
+            _channel.truncate(end);
+        }
+        _channel.position(end);
+
+        if(_records > 2L * _ids.size() + COMPACT_SLACK) {
+            compact();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while(buffer.hasRemaining()) {
+            if(_channel.read(buffer) < 0) {
+                throw new EOFException("Truncated ledger: " + _file);
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC);
+        header.flip();
+        while(header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     *
+     * Write the live set to a new file and move it over the log.
+     *
+     */
+    private void compact() throws IOException {
+        File tmp = new File(_file.getPath() + ".compact");
+        final FileChannel out = FileChannel.open(tmp.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                    StandardOpenOption.WRITE);
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            writeHeader(out);
+            final IOException[] error = new IOException[1];
+            _ids.forEach(new LongHashSet.Visitor() {
+                public void visit(long id) {
+                    if(error[0] != null) {
+                        return;
+                    }
+                    buffer.putLong(id);
+                    if(!buffer.hasRemaining()) {
+                        try {
+                            drain(out, buffer);
+                        } catch(IOException ioe) {
+                            error[0] = ioe;
+                        }
+                    }
+                }
+            });
+            if(error[0] != null) {
+                throw error[0];
+            }
+            drain(out, buffer);
+            out.force(true);
+        } finally {
+            out.close();
+        }
+
+        _channel.close();
+        Files.move(tmp.toPath(), _file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        _channel = FileChannel.open(_file.toPath(),
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+        _channel.position(_channel.size());
+        _records = _ids.size();
+        _unsynced = 0;
+        _compactions++;
+
+        if(_bloom != null) {
+            _bloomExpected = Math.max(_bloomExpected, 2 * _ids.size());
+            buildBloom();
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer)
+                                                    throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void buildBloom() {
+        int bits = Integer.highestOneBit(
+                        Math.max(1024, _bloomExpected * BLOOM_BITS) - 1) << 1;
+        _bloom = new long[bits / 64];
+        _ids.forEach(new LongHashSet.Visitor() {
+            public void visit(long id) {
+                bloomAdd(id);
+            }
+        });
+    }
+
+    private void bloomAdd(long id) {
+        int mask = _bloom.length * 64 - 1;
+        long h = id * 0x9E3779B97F4A7C15L;
+        int h1 = (int)h;
+        int h2 = (int)(h >>> 32) | 1;
+        for(int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            _bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean bloomContains(long id) {
+        int mask = _bloom.length * 64 - 1;
+        long h = id * 0x9E3779B97F4A7C15L;
+        int h1 = (int)h;
+        int h2 = (int)(h >>> 32) | 1;
+        for(int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if((_bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
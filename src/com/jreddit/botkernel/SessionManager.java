@@ -0,0 +1,194 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.omrlnr.jreddit.*;
+
+/**
+ *
+ * Kernel wide reddit sessions.
+ *
+ * Bots and crawlers get their User from here, so everything using the
+ * same credentials shares one User and its session (cookie and
+ * modhash). connect() logs in only if the session has never been
+ * established, is older than the maximum session age, or was
+ * invalidated after a call failed with an authentication error.
+ * Otherwise it returns at once, and counts a login avoided.
+ *
+ * Callers connecting the same User at the same time wait for a single
+ * login.
+ *
+ */
+public class SessionManager {
+
+    //
+    // Default maximum session age in seconds, after which connect()
+    // logs in again.
+    //
+    public static final int DEFAULT_MAX_AGE = 24 * 60 * 60;
+
+    private static SessionManager _sessionManager = null;
+
+    //
+    // Shared users by credentials.
+    //
+    private Map<String, User> _users = new ConcurrentHashMap<String, User>();
+
+    //
+    // Session state by user.
+    //
+    private Map<User, Session> _sessions =
+                                    new ConcurrentHashMap<User, Session>();
+
+    private volatile long _maxAgeMillis = DEFAULT_MAX_AGE * 1000L;
+
+    private LongAdder _logins = new LongAdder();
+    private LongAdder _loginsAvoided = new LongAdder();
+    private LongAdder _loginFailures = new LongAdder();
+    private LongAdder _invalidations = new LongAdder();
+
+    private static class Session {
+        long loginTime = 0;
+        boolean valid = false;
+    }
+
+    /**
+     *
+     * Get the kernel wide session manager.
+     *
+     */
+    public static synchronized SessionManager getSessionManager() {
+        if(_sessionManager == null) {
+            _sessionManager = new SessionManager();
+        }
+        return _sessionManager;
+    }
+
+    private SessionManager() {
+    }
+
+    /**
+     *
+     * Set the age in seconds after which a session is logged in again.
+     *
+     */
+    public void setMaxAge(int seconds) {
+        _maxAgeMillis = Math.max(1, seconds) * 1000L;
+    }
+
+    /**
+     *
+     * Get the shared User for some credentials. Does not log in.
+     *
+     */
+    public User getUser(String username, String password) {
+        String key = username + "\u0000" + password;
+        User user = _users.get(key);
+        if(user == null) {
+            synchronized(_users) {
+                user = _users.get(key);
+                if(user == null) {
+                    user = new User(username, password);
+                    _users.put(key, user);
+                }
+            }
+        }
+        return user;
+    }
+
+    /**
+     *
+     * Make sure a user has a valid session, logging in only if needed.
+     *
+     * @throws IOException  If logging in failed.
+     *
+     */
+    public void connect(User user) throws IOException {
+        Session session = getSession(user);
+        synchronized(session) {
+            long now = System.currentTimeMillis();
+            if(session.valid && now - session.loginTime < _maxAgeMillis) {
+                _loginsAvoided.increment();
+                return;
+            }
+
+            try {
+                user.connect();
+            } catch(IOException ioe) {
+                _loginFailures.increment();
+                session.valid = false;
+                throw ioe;
+            }
+            _logins.increment();
+            session.valid = true;
+            session.loginTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     *
+     * Mark a user's session as no longer valid, e.g. after a call
+     * failed with an authentication error. The next connect() logs in.
+     *
+     */
+    public void invalidate(User user) {
+        Session session = getSession(user);
+        synchronized(session) {
+            if(session.valid) {
+                session.valid = false;
+                _invalidations.increment();
+                BotKernel.getBotKernel().log("Session of " +
+                    user.getUsername() + " invalidated.");
+            }
+        }
+    }
+
+    /**
+     *
+     * Check if a failed call failed because the session was not
+     * accepted, i.e. reddit answered 401 or 403.
+     *
+     */
+    public static boolean isAuthError(IOException ioe) {
+        String message = ioe.getMessage();
+        return message != null &&
+                (message.indexOf("response code: 401") != -1 ||
+                 message.indexOf("response code: 403") != -1);
+    }
+
+    public long getLogins() { return _logins.sum(); }
+
+    public long getLoginsAvoided() { return _loginsAvoided.sum(); }
+
+    public long getLoginFailures() { return _loginFailures.sum(); }
+
+    public long getInvalidations() { return _invalidations.sum(); }
+
+    public int getSessions() { return _sessions.size(); }
+
+    public String toString() {
+        return "sessions " + _sessions.size() +
+               " logins " + _logins.sum() +
+               " avoided " + _loginsAvoided.sum() +
+               " failed " + _loginFailures.sum() +
+               " invalidated " + _invalidations.sum();
+    }
+
+    private Session getSession(User user) {
+        Session session = _sessions.get(user);
+        if(session == null) {
+            synchronized(_sessions) {
+                session = _sessions.get(user);
+                if(session == null) {
+                    session = new Session();
+                    _sessions.put(user, session);
+                }
+            }
+        }
+        return session;
+    }
+
+}
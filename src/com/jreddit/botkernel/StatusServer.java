@@ -0,0 +1,374 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ *
+ * Local HTTP status endpoint.
+ *
+ * Serves, on the loopback interface only:
+ *
+ *      /status     loaded bots and crawlers, their thread states and
+ *                  each crawler's pass progress, as text.
+ *      /metrics    crawl throughput and latency in the Prometheus text
+ *                  exposition format.
+ *
+ * Everything served is read from the kernel's concurrent collections
+ * and the crawlers' lock free counters. A scrape never takes the
+ * kernel lock or waits on a crawler, so monitoring cannot stall the
+ * kernel.
+ *
+ */
+public class StatusServer {
+
+    private static final String TEXT = "text/plain; charset=utf-8";
+    private static final String PROMETHEUS =
+                                    "text/plain; version=0.0.4; charset=utf-8";
+
+    private BotKernel _kernel;
+
+    private HttpServer _server;
+
+    private ExecutorService _executor;
+
+    /**
+     *
+     * Start serving on a localhost port.
+     *
+     * @param kernel    The kernel to report on.
+     * @param port      The port, on the loopback interface.
+     *
+     */
+    public StatusServer(BotKernel kernel, int port) throws IOException {
+        _kernel = kernel;
+        _server = HttpServer.create(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                          port),
+                    0);
+
+        _server.createContext("/status", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, TEXT, getStatus());
+            }
+        });
+        _server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, PROMETHEUS, getMetrics());
+            }
+        });
+
+        _executor = Executors.newSingleThreadExecutor(
+                                        kernel.getThreadFactory("status"));
+        _server.setExecutor(_executor);
+        _server.start();
+    }
+
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdown();
+    }
+
+    /**
+     *
+     * Human readable status.
+     *
+     */
+    String getStatus() {
+        StringBuffer sb = new StringBuffer();
+
+        List<Bot> bots = _kernel.getBots();
+        sb.append("Bots: " + bots.size() + "\n");
+        for(Bot bot: bots) {
+            sb.append("  " + bot.getName() +
+                        " (" + bot.getClass().getName() + ") " +
+                        getThreadState(bot) + "\n");
+        }
+
+        List<Crawler> crawlers = _kernel.getCrawlers();
+        sb.append("Crawlers: " + crawlers.size() + "\n");
+        for(Crawler crawler: crawlers) {
+            sb.append("  " + crawler.getName() + " " +
+                        getCrawlerState(crawler) +
+                        " pass " + crawler.getPass() + ": " +
+                        crawler.getPassSubreddits() + " / " +
+                        crawler.getSubredditCount() + " subreddits" +
+                        (crawler.getCatalogSize() == 0 ? ", " : 
+                            String.format(" (catalog %.1f%% of %d, " +
+                                          "cycle %d), ",
+                                          100 * crawler.getCatalogCoverage(),
+                                          crawler.getCatalogSize(),
+                                          crawler.getCatalogCycles() + 1)) +
+                        String.format("%.1f",
+                                      crawler.getSubredditsPerMinute()) +
+                        "/min, last pass " +
+                        crawler.getLastPassMillis() / 1000 + "s\n");
+        }
+
+        sb.append("Threads: " + Thread.activeCount() + "\n");
+        return sb.toString();
+    }
+
+    /**
+     *
+     * Metrics in the Prometheus text exposition format.
+     *
+     */
+    String getMetrics() {
+        StringBuffer sb = new StringBuffer();
+
+        List<Bot> bots = _kernel.getBots();
+        List<Crawler> crawlers = _kernel.getCrawlers();
+
+        gauge(sb, "botkernel_bots", "Loaded bots.");
+        sample(sb, "botkernel_bots", "", bots.size());
+
+        gauge(sb, "botkernel_crawlers", "Managed crawlers.");
+        sample(sb, "botkernel_crawlers", "", crawlers.size());
+
+        gauge(sb, "botkernel_bot_up", "1 if the bot thread is alive.");
+        for(Bot bot: bots) {
+            Thread thread = _kernel.getThread(bot);
+            sample(sb, "botkernel_bot_up", label("bot", bot.getName()),
+                    thread != null && thread.isAlive() ? 1 : 0);
+        }
+
+        gauge(sb, "botkernel_crawler_crawling", 
+              "1 if the crawler is crawling, 0 if waiting.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_crawling", crawler(c),
+                    c.isCrawling() ? 1 : 0);
+        }
+
+        gauge(sb, "botkernel_crawler_pass", "Current crawl pass.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_pass", crawler(c), c.getPass());
+        }
+
+        gauge(sb, "botkernel_crawler_pass_subreddits",
+              "Subreddits crawled in the current pass.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_pass_subreddits", crawler(c),
+                    c.getPassSubreddits());
+        }
+
+        gauge(sb, "botkernel_crawler_subreddits", "Subreddits to crawl.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_subreddits", crawler(c),
+                    c.getSubredditCount());
+        }
+
+        gauge(sb, "botkernel_crawler_catalog_coverage",
+              "Fraction of the catalog crawled in the current cycle.");
+        for(Crawler c: crawlers) {
+            if(c.getCatalogSize() > 0) {
+                sample(sb, "botkernel_crawler_catalog_coverage", crawler(c),
+                        c.getCatalogCoverage());
+            }
+        }
+
+        counter(sb, "botkernel_crawler_catalog_cycles_total",
+                "Complete crawls of the catalog.");
+        for(Crawler c: crawlers) {
+            if(c.getCatalogSize() > 0) {
+                sample(sb, "botkernel_crawler_catalog_cycles_total", 
+                        crawler(c), c.getCatalogCycles());
+            }
+        }
+
+        gauge(sb, "botkernel_crawler_last_pass_seconds",
+              "Duration of the last completed pass.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_last_pass_seconds", crawler(c),
+                    c.getLastPassMillis() / 1000.0);
+        }
+
+        gauge(sb, "botkernel_crawler_subreddits_per_minute",
+              "Crawl throughput of the current or last pass.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_subreddits_per_minute", crawler(c),
+                    c.getSubredditsPerMinute());
+        }
+
+        counter(sb, "botkernel_crawler_subreddits_crawled_total",
+                "Subreddits crawled.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_subreddits_crawled_total",
+                    crawler(c), c.getSubredditsCrawled());
+        }
+
+        counter(sb, "botkernel_crawler_submissions_skipped_total",
+                "Submissions skipped as their comment count was unchanged.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_submissions_skipped_total",
+                    crawler(c), c.getSubmissionsSkipped());
+        }
+
+        counter(sb, "botkernel_crawler_evaluations_total",
+                "Comments and submissions matched against criteria.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_evaluations_total",
+                    crawler(c), c.getEvaluations());
+        }
+
+        counter(sb, "botkernel_crawler_matches_total", "Criteria matches.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_matches_total",
+                    crawler(c), c.getMatches());
+        }
+
+        counter(sb, "botkernel_crawler_rate_limit_sleeps_total",
+                "Rate limit errors from reddit.");
+        for(Crawler c: crawlers) {
+            sample(sb, "botkernel_crawler_rate_limit_sleeps_total",
+                    crawler(c), c.getRateLimitSleeps());
+        }
+
+        summary(sb, "botkernel_crawler_listing_latency_seconds",
+                "Latency of listing requests.");
+        for(Crawler c: crawlers) {
+            quantiles(sb, "botkernel_crawler_listing_latency_seconds",
+                        crawler(c), c.getListingLatency());
+        }
+
+        summary(sb, "botkernel_crawler_comment_latency_seconds",
+                "Latency of comment tree fetches.");
+        for(Crawler c: crawlers) {
+            quantiles(sb, "botkernel_crawler_comment_latency_seconds",
+                        crawler(c), c.getCommentLatency());
+        }
+
+        summary(sb, "botkernel_crawler_dispatch_latency_seconds",
+                "Time spent in listeners handling matches.");
+        for(Crawler c: crawlers) {
+            quantiles(sb, "botkernel_crawler_dispatch_latency_seconds",
+                        crawler(c), c.getDispatchLatency());
+        }
+
+        SessionManager sessions = SessionManager.getSessionManager();
+        counter(sb, "botkernel_session_logins_total", 
+                "Logins to reddit.");
+        sample(sb, "botkernel_session_logins_total", "", 
+                sessions.getLogins());
+        counter(sb, "botkernel_session_logins_avoided_total",
+                "Connects served by an existing shared session.");
+        sample(sb, "botkernel_session_logins_avoided_total", "",
+                sessions.getLoginsAvoided());
+        counter(sb, "botkernel_session_login_failures_total",
+                "Failed logins.");
+        sample(sb, "botkernel_session_login_failures_total", "",
+                sessions.getLoginFailures());
+        counter(sb, "botkernel_session_invalidations_total",
+                "Sessions dropped after an authentication error.");
+        sample(sb, "botkernel_session_invalidations_total", "",
+                sessions.getInvalidations());
+
+        ResponseCache cache = ResponseCache.getResponseCache();
+        counter(sb, "botkernel_response_cache_hits_total",
+                "Responses served from the shared cache.");
+        sample(sb, "botkernel_response_cache_hits_total", "",
+                cache.getHits() + cache.getShared());
+        counter(sb, "botkernel_response_cache_misses_total",
+                "Responses fetched from reddit.");
+        sample(sb, "botkernel_response_cache_misses_total", "",
+                cache.getMisses());
+
+        return sb.toString();
+    }
+
+    private String getThreadState(Runnable runnable) {
+        Thread thread = _kernel.getThread(runnable);
+        return thread == null ? "NO THREAD" : thread.getState().name();
+    }
+
+    private static String getCrawlerState(Crawler crawler) {
+        long next = crawler.getNextStepMillis();
+        if(next < 0) {
+            return "STOPPED";
+        }
+        return crawler.isCrawling() ? "CRAWLING" : 
+                                      "WAITING " + next / 1000 + "s";
+    }
+
+    private static String crawler(Crawler crawler) {
+        return label("crawler", crawler.getName());
+    }
+
+    private static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\")
+                                   .replace("\"", "\\\"")
+                                   .replace("\n", "\\n") + "\"";
+    }
+
+    private static void gauge(StringBuffer sb, String name, String help) {
+        header(sb, name, help, "gauge");
+    }
+
+    private static void counter(StringBuffer sb, String name, String help) {
+        header(sb, name, help, "counter");
+    }
+
+    private static void summary(StringBuffer sb, String name, String help) {
+        header(sb, name, help, "summary");
+    }
+
+    private static void header( StringBuffer sb,
+                                String name,
+                                String help,
+                                String type) {
+        sb.append("# HELP " + name + " " + help + "\n");
+        sb.append("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample( StringBuffer sb,
+                                String name,
+                                String labels,
+                                double value) {
+        sb.append(name);
+        if(labels.length() > 0) {
+            sb.append("{" + labels + "}");
+        }
+        if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append(" " + (long)value + "\n");
+        } else {
+            sb.append(" " + value + "\n");
+        }
+    }
+
+    private static void quantiles(  StringBuffer sb,
+                                    String name,
+                                    String labels,
+                                    LatencyHistogram.Snapshot snapshot) {
+        String sep = labels + ",";
+        sample(sb, name, sep + "quantile=\"0.5\"", snapshot.getP50() / 1000);
+        sample(sb, name, sep + "quantile=\"0.95\"", snapshot.getP95() / 1000);
+        sample(sb, name, sep + "quantile=\"0.99\"", snapshot.getP99() / 1000);
+        sample(sb, name + "_sum", labels,
+                snapshot.getMean() * snapshot.getCount() / 1000);
+        sample(sb, name + "_count", labels, snapshot.getCount());
+    }
+
+    private static void send(   HttpExchange exchange,
+                                String contentType,
+                                String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+package com.jreddit.botkernel;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ *
+ * A large, fixed list of subreddit names, e.g. all of reddits.txt.
+ *
+ * Names are stored back to back as UTF-8 in one byte array, with the
+ * offset of each in an int array, instead of as a String each. The
+ * crawl order is a permutation of the entries, so the catalog can be
+ * re-ordered without moving names. An open addressing index of entries
+ * by case insensitive name makes contains() and indexOf() constant
+ * time. Lines listed twice are kept once.
+ *
+ * Immutable once loaded, except for the order, which must not be
+ * changed while the catalog is in use by a crawler.
+ *
+ */
+public class SubredditCatalog {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //
+    // Entry i is _names[_offsets[i] .. _offsets[i + 1]).
+    //
+    private byte[] _names;
+    private int[] _offsets;
+    private int _size;
+
+    //
+    // Crawl order. Position p holds entry _order[p].
+    //
+    private int[] _order;
+
+    //
+    // Open addressing index of entry + 1 by name hash. 0 marks an
+    // empty slot.
+    //
+    private int[] _index;
+
+    private String _source;
+
+    /**
+     *
+     * Load a catalog, one subreddit per line. Blank lines are skipped.
+     *
+     */
+    public static SubredditCatalog load(String filename) throws IOException {
+        BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(filename), UTF8));
+        try {
+            SubredditCatalog catalog = new SubredditCatalog(filename);
+            String line;
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(line.length() > 0) {
+                    catalog.add(line);
+                }
+            }
+            catalog.trim();
+            return catalog;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     *
+     * Create a catalog of the given names, in order.
+     *
+     */
+    public SubredditCatalog(List<String> names) {
+        this("list");
+        for(String name: names) {
+            add(name.trim());
+        }
+        trim();
+    }
+
+    private SubredditCatalog(String source) {
+        _source = source;
+        _names = new byte[64 * 1024];
+        _offsets = new int[1024];
+        _index = new int[2048];
+    }
+
+    public int size() { return _size; }
+
+    /**
+     *
+     * Get the subreddit at a position in crawl order.
+     *
+     */
+    public String get(int position) {
+        int entry = _order[position];
+        int start = _offsets[entry];
+        return new String(_names, start, _offsets[entry + 1] - start, UTF8);
+    }
+
+    /**
+     *
+     * Check for a subreddit, ignoring case.
+     *
+     */
+    public boolean contains(String name) {
+        return find(name) >= 0;
+    }
+
+    /**
+     *
+     * Get the subreddits at count positions from start in crawl order,
+     * wrapping around at the end.
+     *
+     */
+    public List<String> window(int start, int count) {
+        count = Math.min(count, _size);
+        List<String> subs = new ArrayList<String>(count);
+        for(int i = 0; i < count; i++) {
+            subs.add(get((start + i) % _size));
+        }
+        return subs;
+    }
+
+    /**
+     *
+     * Re-order the catalog randomly. The same seed gives the same order,
+     * so the order survives restarts.
+     *
+     */
+    public void shuffle(long seed) {
+        Random random = new Random(seed);
+        for(int i = _size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = _order[i];
+            _order[i] = _order[j];
+            _order[j] = t;
+        }
+    }
+
+    /**
+     *
+     * Approximate memory used, in bytes.
+     *
+     */
+    public long getMemory() {
+        return _names.length + 4L * (_offsets.length + _order.length +
+                                     _index.length);
+    }
+
+    public String toString() {
+        return _source + ": " + _size + " subreddits, " +
+                getMemory() / 1024 + " KB";
+    }
+
+    private void add(String name) {
+        if(find(name) >= 0) {
+            return;
+        }
+        byte[] bytes = name.getBytes(UTF8);
+        int start = _size == 0 ? 0 : _offsets[_size];
+        if(start + bytes.length > _names.length) {
+            _names = Arrays.copyOf(_names,
+                            Math.max(_names.length * 2, start + bytes.length));
+        }
+        if(_size + 2 > _offsets.length) {
+            _offsets = Arrays.copyOf(_offsets, _offsets.length * 2);
+        }
+        System.arraycopy(bytes, 0, _names, start, bytes.length);
+        _offsets[_size] = start;
+        _offsets[_size + 1] = start + bytes.length;
+        _size++;
+
+        if(_size * 2 > _index.length) {
+            rebuildIndex(_index.length * 2);
+        } else {
+            insert(_size - 1);
+        }
+    }
+
+    /**
+     *
+     * Release unused space once loaded, and start in file order.
+     *
+     */
+    private void trim() {
+        _names = Arrays.copyOf(_names, _size == 0 ? 0 : _offsets[_size]);
+        _offsets = Arrays.copyOf(_offsets, _size + 1);
+        _order = new int[_size];
+        for(int i = 0; i < _size; i++) {
+            _order[i] = i;
+        }
+    }
+
+    private void rebuildIndex(int length) {
+        _index = new int[length];
+        for(int entry = 0; entry < _size; entry++) {
+            insert(entry);
+        }
+    }
+
+    private void insert(int entry) {
+        int mask = _index.length - 1;
+        int slot = hash(_names, _offsets[entry], _offsets[entry + 1]) & mask;
+        while(_index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        _index[slot] = entry + 1;
+    }
+
+    /**
+     *
+     * @return The entry, or -1.
+     *
+     */
+    private int find(String name) {
+        if(_size == 0) {
+            return -1;
+        }
+        byte[] bytes = name.getBytes(UTF8);
+        int mask = _index.length - 1;
+        int slot = hash(bytes, 0, bytes.length) & mask;
+        while(_index[slot] != 0) {
+            int entry = _index[slot] - 1;
+            if(equalsIgnoreCase(bytes, entry)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean equalsIgnoreCase(byte[] bytes, int entry) {
+        int start = _offsets[entry];
+        if(_offsets[entry + 1] - start != bytes.length) {
+            return false;
+        }
+        for(int i = 0; i < bytes.length; i++) {
+            if(lower(bytes[i]) != lower(_names[start + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+        int h = 0x811c9dc5;
+        for(int i = start; i < end; i++) {
+            h = (h ^ lower(bytes[i])) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    //
+    // Subreddit names are ASCII, and matched case insensitively.
+    //
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+}
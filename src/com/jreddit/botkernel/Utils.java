@@ -53,5 +53,70 @@ public class Utils {
         }
     }
 
+    /**
+     *
+     * Decode a reddit fullname (e.g. t3_1abcde) to a primitive long.
+     *
+     * The base36 id goes in the low 56 bits and the kind number (the 3 in
+     * t3_) in the high byte, so ids of different kinds never collide.
+     *
+     * @param fullname  The fullname to decode.
+     *
+     * @return The decoded value, always positive, or -1 if the fullname
+     *         cannot be decoded.
+     *
+     */
+    public static long fullnameToLong(String fullname) {
+        if(fullname == null) {
+            return -1;
+        }
+
+        long kind = 0;
+        String id = fullname;
+
+        int sep = fullname.indexOf('_');
+        if(sep != -1) {
+            if(sep < 2 || fullname.charAt(0) != 't') {
+                return -1;
+            }
+            try {
+                kind = Long.parseLong(fullname.substring(1, sep));
+            } catch(NumberFormatException nfe) {
+                return -1;
+            }
+            id = fullname.substring(sep + 1);
+        }
+
+        if(kind < 0 || kind > 127 || id.length() == 0 || id.length() > 10) {
+            return -1;
+        }
+
+        long value;
+        try {
+            value = Long.parseLong(id, 36);
+        } catch(NumberFormatException nfe) {
+            return -1;
+        }
+        if(value < 0 || value >= (1L << 56)) {
+            return -1;
+        }
+
+        value |= kind << 56;
+        return value == 0 ? -1 : value;
+    }
+
+    /**
+     *
+     * Encode a value from fullnameToLong() back to a reddit fullname.
+     *
+     */
+    public static String longToFullname(long value) {
+        long kind = value >>> 56;
+        String id = Long.toString(value & ((1L << 56) - 1), 36);
+        if(kind == 0) {
+            return id;
+        }
+        return "t" + kind + "_" + id;
+    }
 
 }